@@ -10,6 +10,7 @@ the methods below.
 import sqlite3
 import os
 import socket
+import struct
 import sys
 import threading
 
@@ -18,16 +19,182 @@ SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
-    while True:
+def recv_null_terminated(sock: socket.socket, pending: bytearray) -> str:
+    """Read one NUL terminated message. Bytes that arrive after the NUL are kept
+    in pending for the next call, so clients may pipeline several statements."""
+    while b"\0" not in pending:
         chunk = sock.recv(1024)
         if not chunk:
             return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        pending += chunk
+    end = pending.index(b"\0")
+    msg = bytes(pending[:end])
+    del pending[:end + 1]
+    return msg.decode("utf-8", errors="replace")
+
+
+# Binary protocol, used by clients that open the connection with BINARY_MAGIC.
+# Every request and reply is a frame of [int length][int correlation id] and a body, big-endian.
+# Requests:  [byte PREPARE][short statement id][text sql]
+#            [byte EXECUTE][short statement id][int row count] and per row [short param count][values]
+# Replies:   [byte OK][int count][short column count] and, for a query, count rows of values
+#            [byte ERROR][text message]
+#            [byte PARTIAL][int count][int failed rows] and per failed row [int row index][text message],
+#            when some rows of a multi-row EXECUTE failed; the other rows were applied
+# A value is [byte type] and nothing for NULL, a long for INTEGER, a double for REAL,
+# or a text, [int length][utf-8 bytes], for TEXT.
+BINARY_MAGIC = b"SQB1"
+OP_PREPARE, OP_EXECUTE = 1, 2
+STATUS_OK, STATUS_ERROR, STATUS_PARTIAL = 0, 1, 2
+T_NULL, T_INTEGER, T_REAL, T_TEXT = 0, 1, 2, 3
+
+
+def read_text(frame: bytes, pos: int):
+    (length,) = struct.unpack_from(">i", frame, pos)
+    pos += 4
+    return frame[pos:pos + length].decode("utf-8"), pos + length
+
+
+def read_value(frame: bytes, pos: int):
+    kind = frame[pos]
+    pos += 1
+    if kind == T_NULL:
+        return None, pos
+    if kind == T_INTEGER:
+        return struct.unpack_from(">q", frame, pos)[0], pos + 8
+    if kind == T_REAL:
+        return struct.unpack_from(">d", frame, pos)[0], pos + 8
+    if kind == T_TEXT:
+        return read_text(frame, pos)
+    raise ValueError(f"unknown value type {kind}")
+
+
+def write_text(out: bytearray, text: str):
+    data = text.encode("utf-8")
+    out += struct.pack(">i", len(data))
+    out += data
+
+
+def write_value(out: bytearray, value):
+    if value is None:
+        out.append(T_NULL)
+    elif isinstance(value, int):
+        out.append(T_INTEGER)
+        out += struct.pack(">q", value)
+    elif isinstance(value, float):
+        out.append(T_REAL)
+        out += struct.pack(">d", value)
+    else:
+        out.append(T_TEXT)
+        write_text(out, str(value))
+
+
+def next_frame(pending: bytearray):
+    """Remove and return the next complete frame in pending, or None if it is still incomplete"""
+    if len(pending) < 4:
+        return None
+    (length,) = struct.unpack_from(">i", pending, 0)
+    if len(pending) < 4 + length:
+        return None
+    frame = bytes(pending[4:4 + length])
+    del pending[:4 + length]
+    return frame
+
+
+def execute_binary_request(conn, statements: dict, frame: bytes) -> bytes:
+    correlation_id, op = struct.unpack_from(">iB", frame, 0)
+    body = bytearray()
+    try:
+        if op == OP_PREPARE:
+            (statement_id,) = struct.unpack_from(">H", frame, 5)
+            statements[statement_id], _ = read_text(frame, 7)
+            body.append(STATUS_OK)
+            body += struct.pack(">ih", 0, 0)
+        elif op == OP_EXECUTE:
+            statement_id, row_count = struct.unpack_from(">Hi", frame, 5)
+            pos = 11
+            rows = []
+            for _ in range(row_count):
+                (param_count,) = struct.unpack_from(">h", frame, pos)
+                pos += 2
+                params = []
+                for _ in range(param_count):
+                    value, pos = read_value(frame, pos)
+                    params.append(value)
+                rows.append(params)
+            sql = statements[statement_id]
+            c = conn.cursor()
+            if len(rows) != 1:
+                return execute_rows(conn, c, sql, rows, correlation_id)
+            c.execute(sql, rows[0])
+            if c.description is not None:
+                result = c.fetchall()
+                body.append(STATUS_OK)
+                body += struct.pack(">ih", len(result), len(c.description))
+                for row in result:
+                    for value in row:
+                        write_value(body, value)
+            else:
+                conn.commit()
+                body.append(STATUS_OK)
+                body += struct.pack(">ih", c.rowcount, 0)
+        else:
+            raise ValueError(f"unknown op {op}")
+    except (sqlite3.Error, KeyError, ValueError, struct.error) as e:
+        conn.rollback()
+        body = bytearray([STATUS_ERROR])
+        write_text(body, f"error: {e}")
+    return struct.pack(">ii", 4 + len(body), correlation_id) + bytes(body)
+
+
+def execute_rows(conn, c, sql: str, rows: list, correlation_id: int) -> bytes:
+    """Execute a statement once per row, each row under its own savepoint, so that a row that fails
+    is rolled back alone instead of taking the rows of other users with it"""
+    applied = 0
+    failed = []
+    for index, params in enumerate(rows):
+        c.execute("SAVEPOINT batch_row")
+        try:
+            c.execute(sql, params)
+            applied += c.rowcount
+        except sqlite3.Error as e:
+            c.execute("ROLLBACK TO batch_row")
+            failed.append((index, f"error: {e}"))
+        c.execute("RELEASE batch_row")
+    conn.commit()
+    body = bytearray()
+    if failed:
+        body.append(STATUS_PARTIAL)
+        body += struct.pack(">ii", applied, len(failed))
+        for index, message in failed:
+            body += struct.pack(">i", index)
+            write_text(body, message)
+    else:
+        body.append(STATUS_OK)
+        body += struct.pack(">ih", applied, 0)
+    return struct.pack(">ii", 4 + len(body), correlation_id) + bytes(body)
+
+
+def handle_binary_client(client_socket: socket.socket, pending: bytearray):
+    """Serve a binary protocol client over one sqlite connection. Every complete request
+    that arrived is executed before the replies are sent back together."""
+    conn = sqlite3.connect(DB_FILE, timeout=10)
+    statements = {}
+    try:
+        while True:
+            replies = bytearray()
+            frame = next_frame(pending)
+            while frame is not None:
+                replies += execute_binary_request(conn, statements, frame)
+                frame = next_frame(pending)
+            if replies:
+                client_socket.sendall(replies)
+            chunk = client_socket.recv(65536)
+            if not chunk:
+                return
+            pending += chunk
+    finally:
+        conn.close()
 
 
 def init_database():
@@ -47,6 +214,7 @@ def init_database():
         username TEXT NOT NULL,
         login_time TEXT NOT NULL,
         logout_time TEXT,
+        write_id TEXT,
         FOREIGN KEY(username) REFERENCES users(username)
     )""")
     
@@ -57,9 +225,26 @@ def init_database():
         filename TEXT NOT NULL,
         upload_time TEXT,
         game_channel TEXT,
+        write_id TEXT,
         FOREIGN KEY(username) REFERENCES users(username)
     )""")
     
+    # A client-generated id per row, so a write resent after its connection dropped is not stored twice
+    for table in ("login_history", "file_tracking"):
+        columns = [row[1] for row in c.execute(f"PRAGMA table_info({table})")]
+        if "write_id" not in columns:
+            c.execute(f"ALTER TABLE {table} ADD COLUMN write_id TEXT")
+    c.execute("CREATE UNIQUE INDEX IF NOT EXISTS login_history_write ON login_history (write_id)")
+    c.execute("CREATE UNIQUE INDEX IF NOT EXISTS file_tracking_write ON file_tracking (write_id)")
+
+    # Indexes for the report, which pages through each table by time and filters by user and channel
+    c.execute("CREATE INDEX IF NOT EXISTS login_history_time ON login_history (login_time, id)")
+    c.execute("CREATE INDEX IF NOT EXISTS login_history_user ON login_history (username, login_time)")
+    c.execute("CREATE INDEX IF NOT EXISTS file_tracking_time ON file_tracking (upload_time, id)")
+    c.execute("CREATE INDEX IF NOT EXISTS file_tracking_user ON file_tracking (username, upload_time)")
+    c.execute("CREATE INDEX IF NOT EXISTS file_tracking_channel ON file_tracking (game_channel, upload_time)")
+    c.execute("CREATE INDEX IF NOT EXISTS users_registration ON users (registration_date, username)")
+
     conn.commit()
     conn.close()
     print(f"[{SERVER_NAME}] Database initialized at {DB_FILE}")
@@ -101,9 +286,20 @@ def execute_sql_query(sql_query: str) -> str:
 def handle_client(client_socket: socket.socket, addr):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+    pending = bytearray()
     try:
+        while len(pending) < len(BINARY_MAGIC) and b"\0" not in pending:
+            chunk = client_socket.recv(1024)
+            if not chunk:
+                return
+            pending += chunk
+        if pending.startswith(BINARY_MAGIC):
+            del pending[:len(BINARY_MAGIC)]
+            handle_binary_client(client_socket, pending)
+            return
+
         while True:
-            message = recv_null_terminated(client_socket)
+            message = recv_null_terminated(client_socket, pending)
             if message == "":
                 break
 
@@ -0,0 +1,90 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ActorMailbox;
+import bgu.spl.net.srv.ActorThreadPool;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Submitting small tasks to actors and waiting for all of them to run, with the original
+ * {@link ActorThreadPool} and with the {@link ActorMailbox} the reactor uses now
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActorSubmitBenchmark {
+
+    private static final int TASKS = 10_000;
+    private static final int THREADS = 4;
+
+    @Param({"ActorThreadPool", "ActorMailbox"})
+    String pool;
+
+    @Param({"1", "64"})
+    int actors;
+
+    private ActorThreadPool actorThreadPool;
+    private ExecutorService workers;
+    private Object[] acts;
+    private ActorMailbox[] mailboxes;
+    private BiConsumer<Integer, Runnable> submit;
+
+    @Setup
+    public void setup() {
+        acts = new Object[actors];
+        mailboxes = new ActorMailbox[actors];
+        if (pool.equals("ActorThreadPool")) {
+            actorThreadPool = new ActorThreadPool(THREADS);
+            for (int i = 0; i < actors; i++) {
+                acts[i] = new Object();
+            }
+            submit = (actor, task) -> actorThreadPool.submit(acts[actor], task);
+        } else {
+            workers = Executors.newFixedThreadPool(THREADS);
+            for (int i = 0; i < actors; i++) {
+                mailboxes[i] = new ActorMailbox(workers);
+            }
+            submit = (actor, task) -> mailboxes[actor].submit(task);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (actorThreadPool != null) {
+            actorThreadPool.shutdown();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void submitAndRun() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        Runnable task = done::countDown;
+        for (int i = 0; i < TASKS; i++) {
+            submit.accept(i % actors, task);
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,45 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A connection that only counts what would have been written to it
+ */
+class CountingHandler implements ConnectionHandler<String> {
+
+    long bytes;
+
+    @Override
+    public void send(String msg) {
+        bytes += msg.length();
+    }
+
+    @Override
+    public boolean sendEncoded(ByteBuffer... parts) {
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+        }
+        return true;
+    }
+
+    @Override
+    public void sendBacklog(Iterator<ByteBuffer[]> backlog) {
+        while (backlog.hasNext()) {
+            sendEncoded(backlog.next());
+        }
+    }
+
+    @Override
+    public void abort(String lastMessage) {
+    }
+
+    @Override
+    public void heartbeat(long sendMillis, long idleMillis) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,59 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publishing one message to a topic, through {@link ConnectionsImpl#send(String, Object)},
+ * with handlers that only count the bytes they are given
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    private static final String TOPIC = "/germany_spain";
+
+    @Param({"1", "100", "10000"})
+    int subscribers;
+
+    private ConnectionsImpl<String> connections;
+    private String message;
+
+    @Setup
+    public void setup() {
+        connections = new ConnectionsImpl<>();
+        for (int id = 0; id < subscribers; id++) {
+            connections.connect(id, new CountingHandler());
+            connections.subscribe(TOPIC, id, Integer.toString(id));
+        }
+        message = "user: bench\n" +
+                  "team a: germany\n" +
+                  "team b: spain\n" +
+                  "event name: goal!!!!\n" +
+                  "time: 1980\n" +
+                  "general game updates:\n" +
+                  "    active: true\n" +
+                  "description:\n" +
+                  "GOOOAAALLL!!!";
+    }
+
+    @Benchmark
+    public void publish() {
+        connections.send(TOPIC, message);
+    }
+}
@@ -0,0 +1,90 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.StompMessageEncoderDecoder;
+import bgu.spl.net.impl.stomp.Frame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a SEND frame the way the servers read it, and encoding the frames they write
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+
+    @Param({"16", "1024"})
+    int bodySize;
+
+    private StompMessageEncoderDecoder encdec;
+    private ByteBuffer sendFrame;
+    private Map<String, String> headers;
+    private String body;
+
+    @Setup
+    public void setup() {
+        encdec = new StompMessageEncoderDecoder();
+        body = "x".repeat(bodySize);
+        String frame = "SEND\n" +
+                       "destination:/germany_spain\n" +
+                       "receipt:77\n" +
+                       "\n" +
+                       body + "\n\u0000";
+        sendFrame = ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8));
+        headers = new HashMap<>();
+        headers.put("receipt-id", "77");
+    }
+
+    /**
+     * The servers' path: the whole read buffer is scanned and parsed in place
+     */
+    @Benchmark
+    public void decodeBulk(Blackhole bh) {
+        Frame frame = encdec.decodeNext(sendFrame.duplicate());
+        bh.consume(frame.getHeaders().get("destination"));
+        bh.consume(frame.getBody());
+    }
+
+    /**
+     * The original path: one call per byte, then the frame string is parsed again
+     */
+    @Benchmark
+    public void decodeBytewise(Blackhole bh) {
+        ByteBuffer buf = sendFrame.duplicate();
+        String message = null;
+        while (message == null) {
+            message = encdec.decodeNextByte(buf.get());
+        }
+        Frame frame = Frame.parse(message);
+        bh.consume(frame.getHeaders().get("destination"));
+        bh.consume(frame.getBody());
+    }
+
+    @Benchmark
+    public byte[] encodeReceipt() {
+        return encdec.encode(new Frame("RECEIPT", headers, null).toString());
+    }
+
+    @Benchmark
+    public byte[] encodeMessage() {
+        return encdec.encode(new Frame("MESSAGE", headers, body).toString());
+    }
+}
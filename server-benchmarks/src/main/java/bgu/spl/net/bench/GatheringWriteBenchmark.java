@@ -0,0 +1,136 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.api.StompMessageEncoderDecoder;
+import bgu.spl.net.srv.NonBlockingConnectionHandler;
+import bgu.spl.net.srv.SelectorLoop;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing queued MESSAGE frames to a loopback socket through {@link NonBlockingConnectionHandler},
+ * as the selector loop does once a connection becomes writable. The write calls and frames
+ * counters give the number of write system calls per message. {@link #writeEach} is the baseline,
+ * the loop the handler ran before it gathered frames: one write per queued frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatheringWriteBenchmark {
+
+    /** frames queued between two writable events */
+    @Param({"1", "16", "256"})
+    int queued;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private Thread reader;
+    private SelectorLoop loop;
+    private NonBlockingConnectionHandler<String> handler;
+    private ByteBuffer prefix;
+    private ByteBuffer shared;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Syscalls {
+        public long writeCalls;
+        public long frames;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        peer = server.accept();
+        client.configureBlocking(false);
+        reader = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1 << 16);
+            try {
+                while (peer.read(sink) >= 0) {
+                    sink.clear();
+                }
+            } catch (IOException ex) {
+            }
+        }, "bench-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        loop = new SelectorLoop(); // never run, the channel is not registered with it
+        handler = new NonBlockingConnectionHandler<>(new StompMessageEncoderDecoder(), new IdleProtocol(), client, loop, Runnable::run);
+        prefix = ByteBuffer.wrap("MESSAGE\nsubscription:7\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        shared = ByteBuffer.wrap(("message-id:0-1\ndestination:/germany_spain\n\n" +
+                                  "user: bench\nevent name: goal\n\u0000").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        handler.close();
+        peer.close();
+        server.close();
+        loop.close();
+    }
+
+    @Benchmark
+    public void writeQueued(Syscalls syscalls) {
+        long writeCalls = NonBlockingConnectionHandler.writeCalls();
+        long frames = NonBlockingConnectionHandler.framesWritten();
+        for (int i = 0; i < queued; i++) {
+            handler.sendEncoded(prefix.duplicate(), shared.duplicate());
+        }
+        while (NonBlockingConnectionHandler.framesWritten() - frames < queued) {
+            handler.continueWrite();
+        }
+        syscalls.writeCalls += NonBlockingConnectionHandler.writeCalls() - writeCalls;
+        syscalls.frames += NonBlockingConnectionHandler.framesWritten() - frames;
+    }
+
+    @Benchmark
+    public void writeEach(Syscalls syscalls) throws IOException {
+        ByteBuffer[][] frames = new ByteBuffer[queued][];
+        for (int i = 0; i < queued; i++) {
+            frames[i] = new ByteBuffer[] { prefix.duplicate(), shared.duplicate() };
+        }
+        for (ByteBuffer[] frame : frames) {
+            do {
+                client.write(frame);
+                syscalls.writeCalls++;
+            } while (frame[frame.length - 1].hasRemaining());
+        }
+        syscalls.frames += queued;
+    }
+
+    private static class IdleProtocol implements MessagingProtocol<String> {
+        @Override
+        public String process(String msg) {
+            return null;
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Clients subscribing to a random topic and unsubscribing again, or connecting, subscribing to
+ * a few random topics and disconnecting, concurrently, while every other connection keeps one
+ * subscription on each of its topics
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SubscriptionChurnBenchmark {
+
+    private static final int CONNECTIONS = 1000;
+    private static final int SUBSCRIPTIONS_PER_CLIENT = 10;
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        @Param({"1", "1000", "100000"})
+        int topics;
+
+        ConnectionsImpl<String> connections;
+        String[] names;
+        final AtomicInteger nextClient = new AtomicInteger(CONNECTIONS);
+
+        @Setup
+        public void setup() {
+            connections = new ConnectionsImpl<>();
+            names = new String[topics];
+            for (int i = 0; i < topics; i++) {
+                names[i] = "/topic-" + i;
+            }
+            for (int id = 0; id < CONNECTIONS; id++) {
+                connections.connect(id, new CountingHandler());
+                for (int sub = 0; sub < SUBSCRIPTIONS_PER_CLIENT; sub++) {
+                    connections.subscribe(names[(id * SUBSCRIPTIONS_PER_CLIENT + sub) % topics], id, Integer.toString(sub));
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        int connectionId;
+        CountingHandler handler;
+        SplittableRandom random;
+
+        @Setup
+        public void setup(Registry registry) {
+            connectionId = registry.nextClient.getAndIncrement();
+            handler = new CountingHandler();
+            registry.connections.connect(connectionId, handler);
+            random = new SplittableRandom(connectionId);
+        }
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe(Registry registry, Client client) {
+        registry.connections.subscribe(registry.names[client.random.nextInt(registry.topics)], client.connectionId, "churn");
+        registry.connections.unsubscribe("churn", client.connectionId);
+    }
+
+    @Benchmark
+    public void connectSubscribeDisconnect(Registry registry, Client client) {
+        registry.connections.connect(client.connectionId, client.handler);
+        for (int sub = 0; sub < SUBSCRIPTIONS_PER_CLIENT; sub++) {
+            registry.connections.subscribe(registry.names[client.random.nextInt(registry.topics)], client.connectionId,
+                    Integer.toString(sub));
+        }
+        registry.connections.disconnect(client.connectionId);
+    }
+}
@@ -0,0 +1,19 @@
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+
+public interface BulkMessageDecoder<M> {
+
+    /**
+     * consume bytes from the given buffer until a message is completed.
+     * bytes of a message that is not yet complete are kept by the decoder
+     * and joined with the bytes of the following calls.
+     *
+     * @param buffer a buffer holding bytes read from the client, its position
+     * is advanced past every byte that was consumed
+     * @return the next complete message or null if the buffer was exhausted
+     * before one was completed.
+     */
+    M decodeNext(ByteBuffer buffer);
+
+}
@@ -13,5 +13,11 @@ public interface MessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * called once the connection is closed, by either side
+     */
+    default void connectionClosed() {
+    }
  
 }
\ No newline at end of file
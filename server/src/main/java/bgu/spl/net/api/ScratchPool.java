@@ -0,0 +1,78 @@
+package bgu.spl.net.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * The scratch arrays decoders keep a partly received frame in, shared by all connections.
+ * A decoder leases an array only while a frame spans several reads and gives it back once the frame
+ * was handled, so an idle connection holds none. Arrays of stomp.decoder.scratchBytes (4KiB) are
+ * pooled, at most stomp.decoder.pooledScratch (256) of them; an array that grew for a large frame
+ * is dropped when it is given back, so one large frame does not leave a large array behind.
+ */
+public final class ScratchPool {
+
+    static final int SIZE = Integer.getInteger("stomp.decoder.scratchBytes", 4096);
+    private static final int MAX_POOLED = Integer.getInteger("stomp.decoder.pooledScratch", 256);
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final LongAdder HELD_BYTES = new LongAdder();
+
+    static {
+        Metrics.gauge("stomp_decoder_scratch_held_bytes", "Scratch bytes held by decoders in the middle of a frame",
+                HELD_BYTES::sum);
+        Metrics.gauge("stomp_decoder_scratch_pooled_bytes", "Scratch bytes pooled for the next partly received frame",
+                () -> (long) POOLED.get() * SIZE);
+    }
+
+    private ScratchPool() {
+    }
+
+    static byte[] lease() {
+        byte[] scratch = POOL.poll();
+        if (scratch == null) {
+            scratch = new byte[SIZE];
+        } else {
+            POOLED.decrementAndGet();
+        }
+        HELD_BYTES.add(scratch.length);
+        return scratch;
+    }
+
+    /**
+     * @return a copy of the scratch array with room for at least the given length, which replaces it
+     */
+    static byte[] grow(byte[] scratch, int length) {
+        byte[] grown = Arrays.copyOf(scratch, Math.max(scratch.length * 2, length));
+        HELD_BYTES.add(grown.length - scratch.length);
+        return grown;
+    }
+
+    static void release(byte[] scratch) {
+        HELD_BYTES.add(-scratch.length);
+        if (scratch.length == SIZE && POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(scratch);
+        } else if (scratch.length == SIZE) {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the scratch bytes decoders hold right now
+     */
+    public static long heldBytes() {
+        return HELD_BYTES.sum();
+    }
+
+    /**
+     * @return the scratch bytes waiting in the pool
+     */
+    public static long pooledBytes() {
+        return (long) POOLED.get() * SIZE;
+    }
+}
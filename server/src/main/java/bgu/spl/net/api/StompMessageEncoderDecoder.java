@@ -1,11 +1,26 @@
 package bgu.spl.net.api;
 
+import bgu.spl.net.impl.stomp.Frame;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
-public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>, BulkMessageDecoder<Frame> {
 
-    private byte[] bytes = new byte[1 << 10]; 
+    private static final String[] COMMANDS = {
+        "CONNECT", "STOMP", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "ACK", "NACK",
+        "BEGIN", "COMMIT", "ABORT", "DISCONNECT"
+    };
+
+    private static final String[] HEADERS = {
+        "accept-version", "host", "login", "passcode", "heart-beat", "destination", "id",
+        "receipt", "ack", "transaction", "content-type", "content-length", "filename",
+        "replay-from"
+    };
+
+    // leased from the ScratchPool only while a frame is partly received, null between frames
+    private byte[] bytes;
     private int len = 0;
 
     @Override
@@ -13,26 +28,175 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
         if (nextByte == '\u0000') { 
             return popString();
         }
+        if (len == 0 && (nextByte == '\n' || nextByte == '\r')) {
+            return null; // a heart-beat between frames
+        }
 
         pushByte(nextByte);
         return null;
     }
 
+    /**
+     * Scans the buffer for the NUL terminating the current frame and parses it in place.
+     * The body of the returned frame is a view over the scanned bytes (or over this
+     * decoder's scratch array when the frame spanned several reads), so it is only valid
+     * until the next call to this method or until the buffer is reused.
+     * The scratch array goes back to the pool on that next call.
+     */
+    @Override
+    public Frame decodeNext(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        if (len == 0) {
+            releaseScratch();
+            while (start < end && (buffer.get(start) == '\n' || buffer.get(start) == '\r')) {
+                start++; // heart-beats between frames, not kept while waiting for the next frame
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\u0000') {
+                buffer.position(i + 1);
+                if (len == 0) {
+                    return parseFrame(buffer, start, i);
+                }
+                pushBytes(buffer, start, i);
+                Frame frame = parseFrame(ByteBuffer.wrap(bytes), 0, len);
+                len = 0;
+                return frame;
+            }
+        }
+
+        pushBytes(buffer, start, end);
+        buffer.position(end);
+        return null;
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
     }
 
     private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+        if (bytes == null) {
+            bytes = ScratchPool.lease();
+        } else if (len >= bytes.length) {
+            bytes = ScratchPool.grow(bytes, len + 1);
         }
         bytes[len++] = nextByte;
     }
 
+    private void pushBytes(ByteBuffer buffer, int from, int to) {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        if (bytes == null) {
+            bytes = ScratchPool.lease();
+        }
+        if (len + count > bytes.length) {
+            bytes = ScratchPool.grow(bytes, len + count);
+        }
+        ByteBuffer src = buffer.duplicate();
+        src.limit(to);
+        src.position(from);
+        src.get(bytes, len, count);
+        len += count;
+    }
+
     private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+        String result = len == 0 ? "" : new String(bytes, 0, len, StandardCharsets.UTF_8);
         len = 0;
+        releaseScratch();
         return result;
     }
-}
\ No newline at end of file
+
+    private void releaseScratch() {
+        if (bytes != null) {
+            ScratchPool.release(bytes);
+            bytes = null;
+        }
+    }
+
+    private static Frame parseFrame(ByteBuffer buf, int from, int to) {
+        int pos = from;
+        while (pos < to && (buf.get(pos) == '\n' || buf.get(pos) == '\r')) {
+            pos++; // EOLs sent between frames as heart-beats
+        }
+
+        int eol = indexOf(buf, (byte) '\n', pos, to);
+        String command = intern(COMMANDS, buf, pos, stripCr(buf, pos, eol));
+        pos = Math.min(eol + 1, to);
+
+        Map<String, String> headers = new HashMap<>();
+        while (pos < to) {
+            int lineStart = pos;
+            eol = indexOf(buf, (byte) '\n', lineStart, to);
+            int lineEnd = stripCr(buf, lineStart, eol);
+            pos = Math.min(eol + 1, to);
+            if (lineEnd == lineStart) {
+                break; // the blank line separating the headers from the body
+            }
+            int colon = indexOf(buf, (byte) ':', lineStart, lineEnd);
+            if (colon < lineEnd) {
+                headers.put(intern(HEADERS, buf, lineStart, colon), string(buf, colon + 1, lineEnd));
+            }
+        }
+
+        int bodyEnd = to;
+        while (bodyEnd > pos && buf.get(bodyEnd - 1) == '\n') {
+            bodyEnd--;
+        }
+        ByteBuffer body = buf.duplicate();
+        body.limit(bodyEnd);
+        body.position(pos);
+        return Frame.wrap(command, headers, body.slice());
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int stripCr(ByteBuffer buf, int from, int eol) {
+        return eol > from && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+    }
+
+    /**
+     * Returns the known constant spelled by the given bytes, so commands and header
+     * names are never allocated, or a new string if the bytes spell an unknown name.
+     */
+    private static String intern(String[] known, ByteBuffer buf, int from, int to) {
+        int length = to - from;
+        for (String candidate : known) {
+            if (candidate.length() == length && matches(candidate, buf, from)) {
+                return candidate;
+            }
+        }
+        return string(buf, from, to);
+    }
+
+    private static boolean matches(String ascii, ByteBuffer buf, int from) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buf.get(from + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String string(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] copy = new byte[to - from];
+        ByteBuffer src = buf.duplicate();
+        src.position(from);
+        src.get(copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+}
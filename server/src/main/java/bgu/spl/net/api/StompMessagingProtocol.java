@@ -1,5 +1,6 @@
 package bgu.spl.net.api;
 
+import bgu.spl.net.impl.stomp.Frame;
 import bgu.spl.net.srv.Connections;
 
 public interface StompMessagingProtocol<T>  {
@@ -9,9 +10,19 @@ public interface StompMessagingProtocol<T>  {
     void start(int connectionId, Connections<T> connections);
     
     void process(T message);
+
+    /**
+     * Process a frame that was already decoded by a {@link BulkMessageDecoder}
+     */
+    void process(Frame frame);
 	
 	/**
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once the connection is closed, by either side, to release what the client still holds
+     */
+    void connectionClosed();
 }
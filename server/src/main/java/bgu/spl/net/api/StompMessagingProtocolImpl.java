@@ -1,14 +1,29 @@
 package bgu.spl.net.api;
 
 import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.srv.AckWindow;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.DestinationTrie;
+import bgu.spl.net.srv.MessageSelector;
+import bgu.spl.net.srv.metrics.LabeledCounter;
+import bgu.spl.net.srv.metrics.Metrics;
 
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+    private static final LabeledCounter FRAMES_IN = Metrics.labeledCounter(
+            "stomp_frames_in_total", "Frames received from clients", "command",
+            "CONNECT", "STOMP", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "ACK", "NACK",
+            "BEGIN", "COMMIT", "ABORT", "DISCONNECT");
+    // the heart-beat this server offers on CONNECTED: how often it can send one, how often it wants one
+    private static final long HEARTBEAT_SEND = Long.getLong("stomp.heartbeat.send", 10_000);
+    private static final long HEARTBEAT_RECEIVE = Long.getLong("stomp.heartbeat.receive", 10_000);
+    // how many of the negotiated intervals a client may miss before its connection is closed as dead
+    private static final int HEARTBEAT_MISSED = Integer.getInteger("stomp.heartbeat.missed", 2);
+
     private int connectionId;
     private ConnectionsImpl<String> connections;
-    private boolean shouldTerminate = false;
+    private volatile boolean shouldTerminate = false;
 
     private String currentUser; 
     
@@ -20,8 +35,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     @Override
     public void process(String message) {
-        Frame frame = Frame.parse(message);
-        
+        process(Frame.parse(message));
+    }
+
+    @Override
+    public void process(Frame frame) {
+        FRAMES_IN.labels(frame.getCommand()).increment();
         switch (frame.getCommand()) {
             case "CONNECT":
                 handleConnect(frame); 
@@ -32,6 +51,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             case "UNSUBSCRIBE":
                 handleUnsubscribe(frame);
                 break;
+            case "ACK":
+                handleAck(frame, false);
+                break;
+            case "NACK":
+                handleAck(frame, true);
+                break;
             case "SEND":
                 handleSend(frame);
                 break;
@@ -48,6 +73,14 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    @Override
+    public void connectionClosed() {
+        if (!shouldTerminate) {
+            connections.disconnect(connectionId);
+            shouldTerminate = true;
+        }
+    }
+
     private void handleSubscribe(Frame frame) {
         String topic = frame.getHeaders().get("destination");
         String subId = frame.getHeaders().get("id");
@@ -60,7 +93,53 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        connections.subscribe(topic, connectionId, subId);
+        MessageSelector selector = null;
+        String selectorText = frame.getHeaders().get("selector");
+        if (selectorText != null) {
+            try {
+                selector = MessageSelector.compile(selectorText);
+            } catch (IllegalArgumentException ex) {
+                sendError(frame, "Malformed SUBSCRIBE frame: " + ex.getMessage());
+                connections.disconnect(connectionId);
+                shouldTerminate = true;
+                return;
+            }
+        }
+
+        AckWindow.Mode ack;
+        try {
+            ack = AckWindow.Mode.parse(frame.getHeaders().get("ack"));
+        } catch (IllegalArgumentException ex) {
+            sendError(frame, "Malformed SUBSCRIBE frame: " + ex.getMessage());
+            connections.disconnect(connectionId);
+            shouldTerminate = true;
+            return;
+        }
+
+        String replayFrom = frame.getHeaders().get("replay-from");
+        if (replayFrom == null) {
+            connections.subscribe(topic, connectionId, subId, selector, ack);
+        } else {
+            long from;
+            try {
+                from = replayFrom.equals("earliest") ? 0 : Long.parseLong(replayFrom);
+            } catch (NumberFormatException ex) {
+                from = -1;
+            }
+            if (from < 0) {
+                sendError(frame, "Malformed SUBSCRIBE frame: replay-from must be earliest or an offset");
+                connections.disconnect(connectionId);
+                shouldTerminate = true;
+                return;
+            }
+            if (DestinationTrie.isPattern(topic)) {
+                sendError(frame, "Malformed SUBSCRIBE frame: replay-from is not supported on a wildcard destination");
+                connections.disconnect(connectionId);
+                shouldTerminate = true;
+                return;
+            }
+            connections.subscribe(topic, connectionId, subId, selector, ack, from);
+        }
 
         if (receipt != null) {
             Frame receiptFrame = new Frame("RECEIPT", new java.util.HashMap<>(), null);
@@ -80,6 +159,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        if (DestinationTrie.isPattern(topic)) {
+            sendError(frame, "Malformed SEND frame: cannot send to a wildcard destination");
+            connections.disconnect(connectionId);
+            shouldTerminate = true;
+            return;
+        }
+
         if (!connections.isSubscribed(topic, connectionId)) {
             sendError(frame, "Permission denied: You are not subscribed to this topic");
             connections.disconnect(connectionId); 
@@ -134,6 +220,24 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
+    private void handleAck(Frame frame, boolean nack) {
+        String ackId = frame.getHeaders().get("id");
+        String receipt = frame.getHeaders().get("receipt");
+
+        if (ackId == null || !connections.acknowledge(connectionId, ackId, nack)) {
+            sendError(frame, "Malformed " + frame.getCommand() + " frame: missing or unknown id header");
+            connections.disconnect(connectionId);
+            shouldTerminate = true;
+            return;
+        }
+
+        if (receipt != null) {
+            Frame receiptFrame = new Frame("RECEIPT", new java.util.HashMap<>(), null);
+            receiptFrame.getHeaders().put("receipt-id", receipt);
+            connections.send(connectionId, receiptFrame.toString());
+        }
+    }
+
     private void handleConnect(Frame frame) {
         String login = frame.getHeaders().get("login");
         String passcode = frame.getHeaders().get("passcode");
@@ -144,17 +248,50 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        long[] heartBeat = parseHeartBeat(frame.getHeaders().get("heart-beat"));
+        if (heartBeat == null) {
+            sendError(frame, "Malformed CONNECT frame: heart-beat must be two comma separated numbers");
+            shouldTerminate = true;
+            return;
+        }
+
         boolean success = connections.connect(connectionId, login, passcode);
 
         if (success) {
             this.currentUser = login; 
-            connections.send(connectionId, "CONNECTED\nversion:1.2\n\n");
+            connections.send(connectionId,
+                    "CONNECTED\nversion:1.2\nheart-beat:" + HEARTBEAT_SEND + "," + HEARTBEAT_RECEIVE + "\n\n");
+            // each side beats at the slower of what one can do and the other wants, 0 on either side means none
+            long sendMillis = HEARTBEAT_SEND == 0 || heartBeat[1] == 0 ? 0 : Math.max(HEARTBEAT_SEND, heartBeat[1]);
+            long receiveMillis = HEARTBEAT_RECEIVE == 0 || heartBeat[0] == 0 ? 0 : Math.max(HEARTBEAT_RECEIVE, heartBeat[0]);
+            connections.heartbeat(connectionId, sendMillis, receiveMillis * HEARTBEAT_MISSED);
         } else {
             sendError(frame, "Login failed: User already logged in or wrong password");
             shouldTerminate = true;
         }
     }
 
+    /**
+     * @return the client's {send, receive} intervals in milliseconds, {0, 0} if the header is missing,
+     * null if it is malformed
+     */
+    private static long[] parseHeartBeat(String header) {
+        if (header == null) {
+            return new long[] { 0, 0 };
+        }
+        int comma = header.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        try {
+            long[] intervals = { Long.parseLong(header.substring(0, comma).trim()),
+                                 Long.parseLong(header.substring(comma + 1).trim()) };
+            return intervals[0] < 0 || intervals[1] < 0 ? null : intervals;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
     private void sendError(Frame frame, String message) {
         StringBuilder sb = new StringBuilder();
         sb.append("ERROR\n");
@@ -0,0 +1,14 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * One group of an aggregate report, such as the number of uploads of one user or to one game channel
+ */
+public class CountRecord {
+	public final String key;
+	public final long count;
+
+	public CountRecord(String key, long count) {
+		this.key = key;
+		this.count = count;
+	}
+}
@@ -1,61 +1,62 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class Database {
 	private final ConcurrentHashMap<String, User> userMap;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	private final ReentrantLock newUserLock = new ReentrantLock();
+	private static final int REPORT_PAGE_SIZE = Integer.getInteger("stomp.report.pageSize", 500);
+
+	private final StorageBackend store;
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
 		connectionsIdMap = new ConcurrentHashMap<>();
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
-	}
-
-	public static Database getInstance() {
-		return Instance.instance;
+		this.store = openStore(System.getProperty("stomp.db.backend", "embedded"));
+		for (UserRecord record : store.users()) {
+			userMap.put(record.username, new User(-1, record.username, record.password));
+		}
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
+	 * @param backend "embedded" for the in-process store, kept in the file named by stomp.db.file
+	 * and flushed every stomp.db.flushMillis, or "sql" for the external SQL server
 	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			out.print(sql + '\0');
-			out.flush();
-			
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
+	private static StorageBackend openStore(String backend) {
+		if (backend.equals("sql")) {
+			return new SqlBackend("127.0.0.1", 7778);
+		}
+		if (!backend.equals("embedded")) {
+			throw new IllegalArgumentException("unknown stomp.db.backend: " + backend);
+		}
+		try {
+			return new EmbeddedStore(Paths.get(System.getProperty("stomp.db.file", "stomp_server.store")),
+				Long.getLong("stomp.db.flushMillis", 1000));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 
-	/**
-	 * Escape SQL special characters to prevent SQL injection
-	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
+	public static Database getInstance() {
+		return Instance.instance;
+	}
+
+	public StorageBackend getStore() {
+		return store;
 	}
 
 	public void addUser(User user) {
@@ -68,34 +69,27 @@ public class Database {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
 		if (addNewUserCase(connectionId, username, password)) {
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
-			
-			logLogin(username);
+			LocalDateTime now = now();
+			store.addUser(username, password, now);
+			store.login(username, now);
 			return LoginStatus.ADDED_NEW_USER;
 		} else {
 			LoginStatus status = userExistsCase(connectionId, username, password);
 			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-				logLogin(username);
+				store.login(username, now());
 			}
 			return status;
 		}
 	}
 
-	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
+	private static LocalDateTime now() {
+		return LocalDateTime.now(ZoneOffset.UTC);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
 		User user = userMap.get(username);
-		synchronized (user) {
+		user.getLock().lock();
+		try {
 			if (user.isLoggedIn()) {
 				return LoginStatus.ALREADY_LOGGED_IN;
 			} else if (!user.password.equals(password)) {
@@ -106,18 +100,23 @@ public class Database {
 				connectionsIdMap.put(connectionId, user);
 				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 			}
+		} finally {
+			user.getLock().unlock();
 		}
 	}
 
 	private boolean addNewUserCase(int connectionId, String username, String password) {
 		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
+			newUserLock.lock();
+			try {
 				if (!userMap.containsKey(username)) {
 					User user = new User(connectionId, username, password);
 					user.login();
 					addUser(user);
 					return true;
 				}
+			} finally {
+				newUserLock.unlock();
 			}
 		}
 		return false;
@@ -126,110 +125,117 @@ public class Database {
 	public void logout(int connectionsId) {
 		User user = connectionsIdMap.get(connectionsId);
 		if (user != null) {
-			synchronized (user) {
-				String sql = String.format(
-					"UPDATE login_history SET logout_time=datetime('now') " +
-					"WHERE username='%s' AND logout_time IS NULL " +
-					"ORDER BY login_time DESC LIMIT 1",
-					escapeSql(user.name)
-				);
-				executeSQL(sql);
-				
+			user.getLock().lock();
+			try {
+				store.logout(user.name, now());
+
 				user.logout();
 				connectionsIdMap.remove(connectionsId);
+			} finally {
+				user.getLock().unlock();
 			}
 		}
 	}
 
 	/**
-	 * Track file upload in SQL database
+	 * Track file upload in the storage backend.
+	 * The caller does not wait for the upload to be stored durably.
 	 * @param username User who uploaded the file
 	 * @param filename Name of the file
 	 * @param gameChannel Game channel the file was reported to
 	 */
 	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+		store.trackFileUpload(username, filename, gameChannel, now());
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Generate and print the full server report
 	 */
 	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
-		
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		try {
+			writeReport(out, ReportFilter.ALL, false);
+		} catch (IOException e) {
+			System.err.println("Report Error: " + e.getMessage());
 		}
-		
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
+		out.flush();
+	}
+
+	/**
+	 * Write the server report, reading the rows from the storage backend stomp.report.pageSize at a time
+	 * and flushing the writer after every page, so the report never holds more than one page in memory.
+	 * @param filter the rows to report
+	 * @param aggregate whether to report the number of logins and uploads per user and per channel
+	 * instead of the rows themselves
+	 */
+	public void writeReport(Writer out, ReportFilter filter, boolean aggregate) throws IOException {
+		store.flush();
+		out.write(repeat("=", 80) + "\n");
+		out.write("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now() + "\n");
+		if (filter != ReportFilter.ALL) {
+			out.write("Filter: " + filter + "\n");
 		}
-		
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
+		out.write(repeat("=", 80) + "\n");
+
+		if (aggregate) {
+			writeCounts(out, "\n1. LOGINS PER USER:", store.countLogins(filter));
+			writeCounts(out, "\n2. UPLOADS PER USER:", store.countUploads(filter, false));
+			writeCounts(out, "\n3. UPLOADS PER CHANNEL:", store.countUploads(filter, true));
+		} else {
+			writeSection(out, "\n1. REGISTERED USERS:", "   No users registered",
+				(UserRecord after) -> store.users(filter, after, REPORT_PAGE_SIZE),
+				(UserRecord user) -> "   " + user.username + ", " + format(user.registered));
+			writeSection(out, "\n2. LOGIN HISTORY:", "   No login history",
+				(LoginRecord after) -> store.logins(filter, after, REPORT_PAGE_SIZE),
+				(LoginRecord login) -> "   " + login.username + "  Login: " + format(login.loginTime)
+					+ "  Logout: " + (login.logoutTime == null ? "Still logged in" : format(login.logoutTime)));
+			writeSection(out, "\n3. FILE UPLOADS:", "   No files uploaded",
+				(UploadRecord after) -> store.uploads(filter, after, REPORT_PAGE_SIZE),
+				(UploadRecord upload) -> "   " + upload.username + "  File: " + upload.filename
+					+ "  Time: " + format(upload.uploadTime) + "  Game: " + upload.gameChannel);
+		}
+
+		out.write("\n4. STORAGE BACKEND:\n");
+		out.write(repeat("-", 80) + "\n");
+		out.write("   " + store.describe() + "\n");
+		out.write(repeat("=", 80) + "\n");
+		out.flush();
+	}
+
+	/**
+	 * Write every row of a section, fetching each page with the last row of the previous page as its cursor
+	 */
+	private <R> void writeSection(Writer out, String title, String empty,
+			Function<R, List<R>> page, Function<R, String> line) throws IOException {
+		out.write(title + "\n");
+		out.write(repeat("-", 80) + "\n");
+		List<R> rows = page.apply(null);
+		if (rows.isEmpty()) {
+			out.write(empty + "\n");
+		}
+		while (!rows.isEmpty()) {
+			for (R row : rows) {
+				out.write(line.apply(row));
+				out.write('\n');
 			}
+			out.flush();
+			rows = rows.size() < REPORT_PAGE_SIZE ? Collections.emptyList() : page.apply(rows.get(rows.size() - 1));
 		}
-		
-	System.out.println(repeat("=", 80));
+	}
+
+	private void writeCounts(Writer out, String title, List<CountRecord> counts) throws IOException {
+		out.write(title + "\n");
+		out.write(repeat("-", 80) + "\n");
+		for (CountRecord count : counts) {
+			out.write("   " + count.key + ": " + count.count + "\n");
+		}
+		if (counts.isEmpty()) {
+			out.write("   None\n");
+		}
+	}
+
+private static String format(LocalDateTime time) {
+	return SqlBackend.SQL_TIME.format(time);
 }
 
 private String repeat(String str, int times) {
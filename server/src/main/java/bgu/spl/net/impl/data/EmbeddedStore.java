@@ -0,0 +1,390 @@
+package bgu.spl.net.impl.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * Keeps the data in the server's own memory, indexed by username and by game channel.
+ * Logins and uploads are kept in the order they were recorded, which is also their time order since
+ * the times come from the server clock, so a page of them starts right after the id of the previous page.
+ * Every change is also appended to a journal file, which is replayed when the store is opened.
+ * Changes are buffered in memory and written to the journal and forced to disk by a background
+ * thread every flushMillis milliseconds, by {@link #flush()}, and when the JVM shuts down,
+ * so a crash loses at most the changes of the last interval.
+ */
+class EmbeddedStore implements StorageBackend {
+	private static final byte ADD_USER = 1;
+	private static final byte LOGIN = 2;
+	private static final byte LOGOUT = 3;
+	private static final byte UPLOAD = 4;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final List<UserRecord> users = new ArrayList<>();
+	private final Map<String, Integer> userPositions = new HashMap<>();
+	private final List<LoginRecord> logins = new ArrayList<>();
+	private final Map<String, List<Integer>> loginsByUser = new HashMap<>();
+	private final List<UploadRecord> uploads = new ArrayList<>();
+	private final Map<String, List<Integer>> uploadsByUser = new HashMap<>();
+	private final Map<String, List<Integer>> uploadsByChannel = new HashMap<>();
+
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private final DataOutputStream pendingOut = new DataOutputStream(pending);
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final Path file;
+	private final FileChannel journal;
+
+	EmbeddedStore(Path file, long flushMillis) throws IOException {
+		this.file = file;
+		this.journal = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		recover();
+
+		ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "store-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "store-flush-on-exit"));
+		Metrics.gauge("stomp_store_pending_bytes", "Journal bytes of the embedded store not yet written to disk", pending::size);
+	}
+
+	/**
+	 * Rebuild the indexes from the journal. A record cut short by a crash is dropped, along with anything after it.
+	 */
+	private void recover() throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int valid = 0;
+		try {
+			while (in.available() > 0) {
+				byte type = in.readByte();
+				String username = in.readUTF();
+				switch (type) {
+					case ADD_USER:
+						applyAddUser(username, in.readUTF(), time(in.readLong()));
+						break;
+					case LOGIN:
+						applyLogin(username, time(in.readLong()));
+						break;
+					case LOGOUT:
+						applyLogout(username, time(in.readLong()));
+						break;
+					case UPLOAD:
+						applyUpload(username, in.readUTF(), in.readUTF(), time(in.readLong()));
+						break;
+					default:
+						throw new EOFException("unknown record type " + type);
+				}
+				valid = bytes.length - in.available();
+			}
+		} catch (EOFException e) {
+			System.err.println("Store Error: dropping " + (bytes.length - valid) + " bytes at the end of " + file);
+		}
+		journal.truncate(valid);
+		journal.position(valid);
+	}
+
+	@Override
+	public void addUser(String username, String password, LocalDateTime registered) {
+		lock.lock();
+		try {
+			if (applyAddUser(username, password, registered)) {
+				pendingOut.writeByte(ADD_USER);
+				pendingOut.writeUTF(username);
+				pendingOut.writeUTF(password);
+				pendingOut.writeLong(millis(registered));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // writing to memory does not fail
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void login(String username, LocalDateTime time) {
+		lock.lock();
+		try {
+			applyLogin(username, time);
+			pendingOut.writeByte(LOGIN);
+			pendingOut.writeUTF(username);
+			pendingOut.writeLong(millis(time));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void logout(String username, LocalDateTime time) {
+		lock.lock();
+		try {
+			if (applyLogout(username, time)) {
+				pendingOut.writeByte(LOGOUT);
+				pendingOut.writeUTF(username);
+				pendingOut.writeLong(millis(time));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void trackFileUpload(String username, String filename, String gameChannel, LocalDateTime time) {
+		lock.lock();
+		try {
+			applyUpload(username, filename, gameChannel, time);
+			pendingOut.writeByte(UPLOAD);
+			pendingOut.writeUTF(username);
+			pendingOut.writeUTF(filename);
+			pendingOut.writeUTF(gameChannel);
+			pendingOut.writeLong(millis(time));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean applyAddUser(String username, String password, LocalDateTime registered) {
+		if (userPositions.containsKey(username)) {
+			return false;
+		}
+		userPositions.put(username, users.size());
+		users.add(new UserRecord(username, password, registered));
+		return true;
+	}
+
+	private void applyLogin(String username, LocalDateTime time) {
+		loginsByUser.computeIfAbsent(username, name -> new ArrayList<>()).add(logins.size());
+		logins.add(new LoginRecord(logins.size() + 1, username, time, null));
+	}
+
+	private boolean applyLogout(String username, LocalDateTime time) {
+		List<Integer> positions = loginsByUser.get(username);
+		if (positions == null) {
+			return false;
+		}
+		for (int i = positions.size() - 1; i >= 0; i--) {
+			LoginRecord login = logins.get(positions.get(i));
+			if (login.logoutTime == null) {
+				logins.set(positions.get(i), new LoginRecord(login.id, username, login.loginTime, time));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void applyUpload(String username, String filename, String gameChannel, LocalDateTime time) {
+		uploadsByUser.computeIfAbsent(username, name -> new ArrayList<>()).add(uploads.size());
+		uploadsByChannel.computeIfAbsent(gameChannel, name -> new ArrayList<>()).add(uploads.size());
+		uploads.add(new UploadRecord(uploads.size() + 1, username, filename, time, gameChannel));
+	}
+
+	/**
+	 * Write the buffered changes to the journal and force them to disk
+	 */
+	@Override
+	public void flush() {
+		flushLock.lock();
+		try {
+			byte[] bytes;
+			lock.lock();
+			try {
+				if (pending.size() == 0) {
+					return;
+				}
+				bytes = pending.toByteArray();
+				pending.reset();
+			} finally {
+				lock.unlock();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				journal.write(buffer);
+			}
+			journal.force(false);
+		} catch (IOException e) {
+			System.err.println("Store Error: " + e.getMessage());
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	@Override
+	public List<UserRecord> users() {
+		lock.lock();
+		try {
+			return new ArrayList<>(users);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<UserRecord> users(ReportFilter filter, UserRecord after, int limit) {
+		lock.lock();
+		try {
+			List<Integer> positions = null;
+			if (filter.username != null) {
+				Integer position = userPositions.get(filter.username);
+				positions = position == null ? Collections.emptyList() : Collections.singletonList(position);
+			}
+			int start = after == null ? 0 : userPositions.get(after.username) + 1;
+			return page(users, positions, start, limit, user -> filter.matches(user.username, user.registered));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<LoginRecord> logins(ReportFilter filter, LoginRecord after, int limit) {
+		lock.lock();
+		try {
+			List<Integer> positions = filter.username == null ? null : index(loginsByUser, filter.username);
+			return page(logins, positions, after == null ? 0 : (int) after.id, limit,
+				login -> filter.matches(login.username, login.loginTime));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<UploadRecord> uploads(ReportFilter filter, UploadRecord after, int limit) {
+		lock.lock();
+		try {
+			return page(uploads, uploadIndex(filter), after == null ? 0 : (int) after.id, limit,
+				upload -> filter.matches(upload.username, upload.gameChannel, upload.uploadTime));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<CountRecord> countLogins(ReportFilter filter) {
+		lock.lock();
+		try {
+			List<Integer> positions = filter.username == null ? null : index(loginsByUser, filter.username);
+			Map<String, Long> counts = new TreeMap<>();
+			for (LoginRecord login : page(logins, positions, 0, Integer.MAX_VALUE,
+					login -> filter.matches(login.username, login.loginTime))) {
+				counts.merge(login.username, 1L, Long::sum);
+			}
+			return toCounts(counts);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<CountRecord> countUploads(ReportFilter filter, boolean byChannel) {
+		lock.lock();
+		try {
+			Map<String, Long> counts = new TreeMap<>();
+			for (UploadRecord upload : page(uploads, uploadIndex(filter), 0, Integer.MAX_VALUE,
+					upload -> filter.matches(upload.username, upload.gameChannel, upload.uploadTime))) {
+				counts.merge(byChannel ? upload.gameChannel : upload.username, 1L, Long::sum);
+			}
+			return toCounts(counts);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the positions of the uploads of the filtered user or channel, or null to scan every upload
+	 */
+	private List<Integer> uploadIndex(ReportFilter filter) {
+		if (filter.username != null) {
+			return index(uploadsByUser, filter.username);
+		}
+		if (filter.gameChannel != null) {
+			return index(uploadsByChannel, filter.gameChannel);
+		}
+		return null;
+	}
+
+	private static List<Integer> index(Map<String, List<Integer>> index, String key) {
+		List<Integer> positions = index.get(key);
+		return positions == null ? Collections.emptyList() : positions;
+	}
+
+	/**
+	 * Collect up to limit matching records at or after position start, either from every record
+	 * or only from the given ascending positions
+	 */
+	private static <R> List<R> page(List<R> records, List<Integer> positions, int start, int limit, Predicate<R> filter) {
+		List<R> page = new ArrayList<>(Math.min(limit, 1024));
+		if (positions == null) {
+			for (int i = start; i < records.size() && page.size() < limit; i++) {
+				if (filter.test(records.get(i))) {
+					page.add(records.get(i));
+				}
+			}
+			return page;
+		}
+		int from = Collections.binarySearch(positions, start);
+		for (int i = from >= 0 ? from : -from - 1; i < positions.size() && page.size() < limit; i++) {
+			R record = records.get(positions.get(i));
+			if (filter.test(record)) {
+				page.add(record);
+			}
+		}
+		return page;
+	}
+
+	private static List<CountRecord> toCounts(Map<String, Long> counts) {
+		List<CountRecord> result = new ArrayList<>(counts.size());
+		for (Map.Entry<String, Long> count : counts.entrySet()) {
+			result.add(new CountRecord(count.getKey(), count.getValue()));
+		}
+		return result;
+	}
+
+	@Override
+	public String describe() {
+		lock.lock();
+		try {
+			return String.format("embedded %s: %d users, %d logins, %d uploads, %d bytes not yet flushed",
+				file, users.size(), logins.size(), uploads.size(), pending.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static long millis(LocalDateTime time) {
+		return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+
+	private static LocalDateTime time(long millis) {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+	}
+}
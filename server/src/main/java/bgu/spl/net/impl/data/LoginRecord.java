@@ -0,0 +1,19 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+
+public class LoginRecord {
+	/** increases in the order logins were recorded */
+	public final long id;
+	public final String username;
+	public final LocalDateTime loginTime;
+	/** null while the user is still logged in */
+	public final LocalDateTime logoutTime;
+
+	public LoginRecord(long id, String username, LocalDateTime loginTime, LocalDateTime logoutTime) {
+		this.id = id;
+		this.username = username;
+		this.loginTime = loginTime;
+		this.logoutTime = logoutTime;
+	}
+}
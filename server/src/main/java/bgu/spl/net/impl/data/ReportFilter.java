@@ -0,0 +1,42 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Restricts a report to one user, one game channel and a time range; a null field does not restrict.
+ * The time range is [from, to) and applies to the registration, login or upload time of each row.
+ * The game channel only applies to uploads.
+ */
+public class ReportFilter {
+	public static final ReportFilter ALL = new ReportFilter(null, null, null, null);
+
+	public final String username;
+	public final String gameChannel;
+	public final LocalDateTime from;
+	public final LocalDateTime to;
+
+	public ReportFilter(String username, String gameChannel, LocalDateTime from, LocalDateTime to) {
+		this.username = username;
+		this.gameChannel = gameChannel;
+		this.from = from;
+		this.to = to;
+	}
+
+	boolean matches(String username, LocalDateTime time) {
+		return (this.username == null || this.username.equals(username))
+			&& (from == null || !time.isBefore(from))
+			&& (to == null || time.isBefore(to));
+	}
+
+	boolean matches(String username, String gameChannel, LocalDateTime time) {
+		return (this.gameChannel == null || this.gameChannel.equals(gameChannel)) && matches(username, time);
+	}
+
+	@Override
+	public String toString() {
+		return "user=" + (username == null ? "*" : username)
+			+ " channel=" + (gameChannel == null ? "*" : gameChannel)
+			+ " from=" + (from == null ? "*" : from)
+			+ " to=" + (to == null ? "*" : to);
+	}
+}
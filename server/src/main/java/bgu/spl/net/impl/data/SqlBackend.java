@@ -0,0 +1,164 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the data in the external SQL server (data/sql_server.py), over pooled socket connections
+ * speaking its binary protocol, so values are sent as bound parameters and come back typed.
+ * Changes go through the {@link WriteBehindQueue}, queries are sent directly.
+ * Every inserted row carries a write id unique to this process, and a logout names the login it closes
+ * by that id, so the writes the pool resends after a dropped connection are applied once.
+ */
+class SqlBackend implements StorageBackend {
+	static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final SqlConnectionPool pool;
+	private final WriteBehindQueue writes;
+	private final String writeIdPrefix = UUID.randomUUID() + "-";
+	private final AtomicLong nextWriteId = new AtomicLong();
+	// username -> write id of the user's open login, a user has at most one
+	private final ConcurrentHashMap<String, String> openLogins = new ConcurrentHashMap<>();
+
+	SqlBackend(String host, int port) {
+		this.pool = new SqlConnectionPool(host, port,
+			Integer.getInteger("stomp.sql.poolSize", 4),
+			Long.getLong("stomp.sql.healthCheckMillis", 30_000),
+			Long.getLong("stomp.sql.retryMillis", 30_000));
+		this.writes = new WriteBehindQueue(
+			pool,
+			Integer.getInteger("stomp.sql.queueCapacity", 4096),
+			Integer.getInteger("stomp.sql.flushSize", 64),
+			Long.getLong("stomp.sql.flushLatencyMillis", 20));
+		writes.start();
+	}
+
+	/**
+	 * Execute a query over a pooled connection
+	 * @return the rows of the result, or no rows if the query failed
+	 */
+	private List<Object[]> select(SqlStatement statement, Object... params) {
+		try {
+			SqlResult result = pool.execute(new SqlRequest(statement, params));
+			if (result.isError()) {
+				System.err.println("SQL Error: " + result.error);
+			}
+			return result.rows;
+		} catch (IOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			return Collections.emptyList();
+		}
+	}
+
+	private String writeId() {
+		return writeIdPrefix + nextWriteId.incrementAndGet();
+	}
+
+	@Override
+	public void addUser(String username, String password, LocalDateTime registered) {
+		writes.submit(SqlStatement.INSERT_USER, username, password, SQL_TIME.format(registered));
+	}
+
+	@Override
+	public void login(String username, LocalDateTime time) {
+		String login = writeId();
+		openLogins.put(username, login);
+		writes.submit(SqlStatement.INSERT_LOGIN, username, SQL_TIME.format(time), login);
+	}
+
+	@Override
+	public void logout(String username, LocalDateTime time) {
+		String login = openLogins.remove(username);
+		if (login != null) {
+			writes.submit(SqlStatement.UPDATE_LOGOUT, SQL_TIME.format(time), login);
+		}
+	}
+
+	@Override
+	public void trackFileUpload(String username, String filename, String gameChannel, LocalDateTime time) {
+		writes.submit(SqlStatement.INSERT_UPLOAD, username, filename, SQL_TIME.format(time), gameChannel, writeId());
+	}
+
+	@Override
+	public void flush() {
+		writes.awaitFlushed();
+	}
+
+	@Override
+	public List<UserRecord> users() {
+		List<UserRecord> users = new ArrayList<>();
+		for (Object[] row : select(SqlStatement.SELECT_USERS)) {
+			users.add(new UserRecord((String) row[0], (String) row[1], parseTime(row[2])));
+		}
+		return users;
+	}
+
+	@Override
+	public List<UserRecord> users(ReportFilter filter, UserRecord after, int limit) {
+		List<UserRecord> users = new ArrayList<>(limit);
+		for (Object[] row : select(SqlStatement.SELECT_USER_PAGE, filter.username, format(filter.from), format(filter.to),
+				after == null ? "" : format(after.registered), after == null ? "" : after.username, limit)) {
+			users.add(new UserRecord((String) row[0], (String) row[1], parseTime(row[2])));
+		}
+		return users;
+	}
+
+	@Override
+	public List<LoginRecord> logins(ReportFilter filter, LoginRecord after, int limit) {
+		List<LoginRecord> logins = new ArrayList<>(limit);
+		for (Object[] row : select(SqlStatement.SELECT_LOGIN_PAGE, filter.username, format(filter.from), format(filter.to),
+				after == null ? "" : format(after.loginTime), after == null ? 0L : after.id, limit)) {
+			logins.add(new LoginRecord((Long) row[0], (String) row[1], parseTime(row[2]), parseTime(row[3])));
+		}
+		return logins;
+	}
+
+	@Override
+	public List<UploadRecord> uploads(ReportFilter filter, UploadRecord after, int limit) {
+		List<UploadRecord> uploads = new ArrayList<>(limit);
+		for (Object[] row : select(SqlStatement.SELECT_UPLOAD_PAGE, filter.username, format(filter.from), format(filter.to),
+				filter.gameChannel, after == null ? "" : format(after.uploadTime), after == null ? 0L : after.id, limit)) {
+			uploads.add(new UploadRecord((Long) row[0], (String) row[1], (String) row[2], parseTime(row[3]), (String) row[4]));
+		}
+		return uploads;
+	}
+
+	@Override
+	public List<CountRecord> countLogins(ReportFilter filter) {
+		return toCounts(select(SqlStatement.COUNT_LOGINS_PER_USER, filter.username, format(filter.from), format(filter.to)));
+	}
+
+	@Override
+	public List<CountRecord> countUploads(ReportFilter filter, boolean byChannel) {
+		return toCounts(select(byChannel ? SqlStatement.COUNT_UPLOADS_PER_CHANNEL : SqlStatement.COUNT_UPLOADS_PER_USER,
+			filter.username, format(filter.from), format(filter.to), filter.gameChannel));
+	}
+
+	private static List<CountRecord> toCounts(List<Object[]> rows) {
+		List<CountRecord> counts = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			counts.add(new CountRecord((String) row[0], (Long) row[1]));
+		}
+		return counts;
+	}
+
+	private static String format(LocalDateTime time) {
+		return time == null ? null : SQL_TIME.format(time);
+	}
+
+	private static LocalDateTime parseTime(Object value) {
+		return value == null ? null : LocalDateTime.parse((String) value, SQL_TIME);
+	}
+
+	@Override
+	public String describe() {
+		return "sql " + pool;
+	}
+}
@@ -0,0 +1,261 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A long-lived connection to the SQL server, speaking its binary protocol.
+ * The connection opens with the 4 byte magic "SQB1" and then prepares every {@link SqlStatement}.
+ * After that each request is a frame of
+ * [int length][int correlation id][byte op][short statement id][int row count] and, per row,
+ * [short parameter count] and typed values. The reply is a frame of [int length][int correlation id]
+ * and either [byte 0][int count][short column count] and count rows of typed values for a query,
+ * or [byte 1] and the error text, or, when only some rows of a multi-row execution failed and
+ * the others were applied, [byte 2][int count][int failed rows] and per failed row its [int index]
+ * and error text. A typed value is a type byte followed by a long, a double,
+ * or an int length and UTF-8 bytes, or nothing for null.
+ * Several requests may be written back-to-back before their replies are read; replies are
+ * matched to their requests by correlation id. The socket is reopened on the next call after a failure.
+ */
+class SqlConnection implements Closeable {
+	private static final byte[] MAGIC = {'S', 'Q', 'B', '1'};
+	private static final byte PREPARE = 1;
+	private static final byte EXECUTE = 2;
+	private static final byte OK = 0;
+	private static final byte PARTIAL = 2;
+
+	private static final byte NULL = 0;
+	private static final byte INTEGER = 1;
+	private static final byte REAL = 2;
+	private static final byte TEXT = 3;
+
+	private final String host;
+	private final int port;
+	private final ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+	private final DataOutputStream frameOut = new DataOutputStream(frame);
+	private Socket socket;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private int nextCorrelationId;
+	private long lastUsed;
+
+	SqlConnection(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Send one request and wait for its reply
+	 * @throws IOException if the server could not be reached, the connection is closed in that case
+	 */
+	SqlResult execute(SqlRequest request) throws IOException {
+		return executeAll(Collections.singletonList(request)).get(0);
+	}
+
+	/**
+	 * Pipeline the requests: write all of them, then read their replies
+	 * @param requests executed in order
+	 * @return the reply to every request, in the same order
+	 * @throws IOException if the server could not be reached, the connection is closed in that case
+	 */
+	List<SqlResult> executeAll(List<SqlRequest> requests) throws IOException {
+		SqlResult[] results = new SqlResult[requests.size()];
+		executeAll(requests, results);
+		List<SqlResult> replies = new ArrayList<>(results.length);
+		Collections.addAll(replies, results);
+		return replies;
+	}
+
+	/**
+	 * Pipeline the requests: write all of them, then read their replies
+	 * @param requests executed in order
+	 * @param results filled with the reply to every request, in the same order; when this throws,
+	 *                the requests whose slot is still null were not acknowledged by the server
+	 * @throws IOException if the server could not be reached, the connection is closed in that case
+	 */
+	void executeAll(List<SqlRequest> requests, SqlResult[] results) throws IOException {
+		try {
+			open();
+			int first = nextCorrelationId;
+			for (SqlRequest request : requests) {
+				writeExecute(request);
+			}
+			out.flush();
+			readReplies(first, results);
+			lastUsed = System.nanoTime();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return how long ago, in nanoseconds, this connection last completed a round trip
+	 */
+	long idleNanos() {
+		return System.nanoTime() - lastUsed;
+	}
+
+	boolean isOpen() {
+		return socket != null;
+	}
+
+	private void open() throws IOException {
+		if (socket != null) {
+			return;
+		}
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out.write(MAGIC);
+		int first = nextCorrelationId;
+		SqlStatement[] statements = SqlStatement.values();
+		for (SqlStatement statement : statements) {
+			frameOut.writeInt(nextCorrelationId++);
+			frameOut.writeByte(PREPARE);
+			frameOut.writeShort(statement.ordinal());
+			writeText(statement.sql);
+			writeFrame();
+		}
+		out.flush();
+		SqlResult[] prepared = new SqlResult[statements.length];
+		readReplies(first, prepared);
+		for (int i = 0; i < statements.length; i++) {
+			if (prepared[i].isError()) {
+				throw new IOException("SQL server rejected " + statements[i] + ": " + prepared[i].error);
+			}
+		}
+	}
+
+	private void writeExecute(SqlRequest request) throws IOException {
+		frameOut.writeInt(nextCorrelationId++);
+		frameOut.writeByte(EXECUTE);
+		frameOut.writeShort(request.statement.ordinal());
+		frameOut.writeInt(request.rows.size());
+		for (Object[] params : request.rows) {
+			frameOut.writeShort(params.length);
+			for (Object param : params) {
+				writeValue(param);
+			}
+		}
+		writeFrame();
+	}
+
+	private void writeValue(Object value) throws IOException {
+		if (value == null) {
+			frameOut.writeByte(NULL);
+		} else if (value instanceof Long || value instanceof Integer) {
+			frameOut.writeByte(INTEGER);
+			frameOut.writeLong(((Number) value).longValue());
+		} else if (value instanceof Double) {
+			frameOut.writeByte(REAL);
+			frameOut.writeDouble((Double) value);
+		} else {
+			frameOut.writeByte(TEXT);
+			writeText(value.toString());
+		}
+	}
+
+	private void writeText(String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		frameOut.writeInt(bytes.length);
+		frameOut.write(bytes);
+	}
+
+	private void writeFrame() throws IOException {
+		out.writeInt(frame.size());
+		frame.writeTo(out);
+		frame.reset();
+	}
+
+	/**
+	 * Reads a reply for every slot of results, the one with the first correlation id going to slot 0
+	 */
+	private void readReplies(int firstCorrelationId, SqlResult[] results) throws IOException {
+		for (int i = 0; i < results.length; i++) {
+			in.readInt(); // frame length, the reply is parsed field by field
+			int slot = in.readInt() - firstCorrelationId;
+			if (slot < 0 || slot >= results.length || results[slot] != null) {
+				throw new IOException("SQL server replied with an unexpected correlation id");
+			}
+			results[slot] = readResult();
+		}
+	}
+
+	private SqlResult readResult() throws IOException {
+		byte status = in.readByte();
+		if (status == PARTIAL) {
+			int count = in.readInt();
+			int failed = in.readInt();
+			Map<Integer, String> failedRows = new LinkedHashMap<>();
+			for (int i = 0; i < failed; i++) {
+				int row = in.readInt();
+				failedRows.put(row, readText());
+			}
+			return new SqlResult(count, failedRows);
+		}
+		if (status != OK) {
+			return new SqlResult(readText());
+		}
+		int count = in.readInt();
+		int columns = in.readShort();
+		if (columns == 0) {
+			return new SqlResult(Collections.emptyList(), count);
+		}
+		List<Object[]> rows = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Object[] row = new Object[columns];
+			for (int c = 0; c < columns; c++) {
+				row[c] = readValue();
+			}
+			rows.add(row);
+		}
+		return new SqlResult(rows, count);
+	}
+
+	private Object readValue() throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL:
+				return null;
+			case INTEGER:
+				return in.readLong();
+			case REAL:
+				return in.readDouble();
+			case TEXT:
+				return readText();
+			default:
+				throw new IOException("SQL server sent an unknown value type " + type);
+		}
+	}
+
+	private String readText() throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			socket = null;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * A fixed set of long-lived {@link SqlConnection}s shared by every caller of {@link Database}.
+ * A connection that sat idle for longer than the health check interval is probed with
+ * a trivial query before it is handed out, and a connection that failed is reopened by its next user.
+ * A connection that fails during a pipelined batch is replaced by a new one, and the requests the
+ * server did not acknowledge are sent again over it, backing off while the server is unreachable,
+ * until the retry window is over. So a restart of the SQL server delays writes instead of losing them.
+ * A request whose reply was lost to the failure may have been applied already, so the statements
+ * sent through here must be safe to apply twice, see {@link SqlStatement}.
+ */
+class SqlConnectionPool {
+	private static final Histogram ROUND_TRIP_MICROS = Metrics.histogram(
+		"stomp_sql_round_trip_microseconds", "Round trips to the SQL server, pipelined batches count once");
+
+	private static final long FIRST_BACKOFF_MILLIS = 50;
+	private static final long MAX_BACKOFF_MILLIS = 2_000;
+
+	private final String host;
+	private final int port;
+	private final BlockingQueue<SqlConnection> idle;
+	private final long healthCheckNanos;
+	private final long retryNanos;
+
+	private final LongAdder borrows = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder roundTrips = new LongAdder();
+	private final LongAdder roundTripNanos = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * @param retryMillis how long a batch whose connection failed is retried over new connections
+	 */
+	SqlConnectionPool(String host, int port, int size, long healthCheckMillis, long retryMillis) {
+		this.host = host;
+		this.port = port;
+		this.idle = new ArrayBlockingQueue<>(size);
+		this.healthCheckNanos = TimeUnit.MILLISECONDS.toNanos(healthCheckMillis);
+		this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+		for (int i = 0; i < size; i++) {
+			idle.add(new SqlConnection(host, port));
+		}
+		Metrics.counter("stomp_sql_borrows_total", "SQL connections taken from the pool", borrows::sum);
+		Metrics.counter("stomp_sql_failures_total", "SQL round trips and health checks that failed", failures::sum);
+		Metrics.gauge("stomp_sql_idle_connections", "Pooled SQL connections not in use", idle::size);
+	}
+
+	SqlResult execute(SqlRequest request) throws IOException {
+		return executeAll(Collections.singletonList(request)).get(0);
+	}
+
+	/**
+	 * Pipeline the requests over a single pooled connection
+	 * @param requests executed in order
+	 * @return the reply to every request, in the same order
+	 * @throws IOException if some requests were still not acknowledged when the retry window was over
+	 */
+	List<SqlResult> executeAll(List<SqlRequest> requests) throws IOException {
+		SqlResult[] results = new SqlResult[requests.size()];
+		List<SqlRequest> pending = requests;
+		// slots[i] is the index in results of pending.get(i)
+		int[] slots = null;
+		long deadline = System.nanoTime() + retryNanos;
+		long backoffMillis = FIRST_BACKOFF_MILLIS;
+		SqlConnection connection = borrow();
+		try {
+			while (true) {
+				SqlResult[] replies = new SqlResult[pending.size()];
+				long start = System.nanoTime();
+				try {
+					connection.executeAll(pending, replies);
+					long elapsed = System.nanoTime() - start;
+					roundTrips.increment();
+					roundTripNanos.add(elapsed);
+					ROUND_TRIP_MICROS.record(elapsed / 1000);
+				} catch (IOException e) {
+					failures.increment();
+					connection = new SqlConnection(host, port);
+					if (System.nanoTime() - deadline >= 0) {
+						throw e;
+					}
+					backoffMillis = backOff(backoffMillis);
+				}
+
+				List<SqlRequest> unacknowledged = new ArrayList<>();
+				int[] unacknowledgedSlots = new int[pending.size()];
+				for (int i = 0; i < replies.length; i++) {
+					int slot = slots == null ? i : slots[i];
+					if (replies[i] != null) {
+						results[slot] = replies[i];
+					} else {
+						unacknowledgedSlots[unacknowledged.size()] = slot;
+						unacknowledged.add(pending.get(i));
+					}
+				}
+				if (unacknowledged.isEmpty()) {
+					return Arrays.asList(results);
+				}
+				pending = unacknowledged;
+				slots = unacknowledgedSlots;
+			}
+		} finally {
+			idle.add(connection);
+		}
+	}
+
+	/**
+	 * Waits before the next attempt
+	 * @return the wait before the attempt after it
+	 */
+	private static long backOff(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to retry a SQL batch", e);
+		}
+		return Math.min(millis * 2, MAX_BACKOFF_MILLIS);
+	}
+
+	private SqlConnection borrow() throws IOException {
+		long start = System.nanoTime();
+		SqlConnection connection;
+		try {
+			connection = idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a SQL connection", e);
+		}
+		borrows.increment();
+		waitNanos.add(System.nanoTime() - start);
+
+		if (connection.isOpen() && connection.idleNanos() > healthCheckNanos) {
+			try {
+				connection.execute(new SqlRequest(SqlStatement.PING));
+			} catch (IOException e) {
+				failures.increment(); // the connection closed itself and is reopened by the caller's statement
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * @return the mean time, in microseconds, callers waited for a free connection
+	 */
+	double meanWaitMicros() {
+		long count = borrows.sum();
+		return count == 0 ? 0 : waitNanos.sum() / 1000.0 / count;
+	}
+
+	/**
+	 * @return the mean time, in microseconds, of a round trip to the SQL server
+	 */
+	double meanRoundTripMicros() {
+		long count = roundTrips.sum();
+		return count == 0 ? 0 : roundTripNanos.sum() / 1000.0 / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SQL pool: %d borrows, mean wait %.1fus, %d round trips, mean round trip %.1fus, %d failures",
+			borrows.sum(), meanWaitMicros(), roundTrips.sum(), meanRoundTripMicros(), failures.sum());
+	}
+}
@@ -0,0 +1,22 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A prepared statement and the parameters of one or more executions of it.
+ * Parameters are null, Long, Integer, Double or String.
+ */
+class SqlRequest {
+	final SqlStatement statement;
+	final List<Object[]> rows = new ArrayList<>(1);
+
+	SqlRequest(SqlStatement statement, Object... params) {
+		this.statement = statement;
+		rows.add(params);
+	}
+
+	void addRow(Object... params) {
+		rows.add(params);
+	}
+}
@@ -0,0 +1,43 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The reply to a {@link SqlRequest}: the rows of a query, whose values are null, Long, Double or String,
+ * the number of rows a change affected, or the error the SQL server reported.
+ * A change of several rows may fail for some of its rows only, the other rows are applied then.
+ */
+class SqlResult {
+	final List<Object[]> rows;
+	final int count;
+	final String error;
+	/** row index -> error, for the rows of a change that failed while the other rows were applied */
+	final Map<Integer, String> failedRows;
+
+	SqlResult(List<Object[]> rows, int count) {
+		this.rows = rows;
+		this.count = count;
+		this.error = null;
+		this.failedRows = Collections.emptyMap();
+	}
+
+	SqlResult(String error) {
+		this.rows = Collections.emptyList();
+		this.count = 0;
+		this.error = error;
+		this.failedRows = Collections.emptyMap();
+	}
+
+	SqlResult(int count, Map<Integer, String> failedRows) {
+		this.rows = Collections.emptyList();
+		this.count = count;
+		this.error = null;
+		this.failedRows = failedRows;
+	}
+
+	boolean isError() {
+		return error != null;
+	}
+}
@@ -0,0 +1,45 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * Every statement {@link SqlBackend} sends to the SQL server. A connection prepares all of them
+ * once when it opens, under their ordinal as statement id, and then only sends the id and the parameters.
+ */
+enum SqlStatement {
+	PING("SELECT 1", false),
+	// a user row that is already there is the same registration stored before, dropping the duplicate loses nothing
+	INSERT_USER("INSERT OR IGNORE INTO users (username, password, registration_date) VALUES (?, ?, ?)", true),
+	// rows carry a write id of their own, so a row that was resent after its connection dropped is stored once
+	INSERT_LOGIN("INSERT OR IGNORE INTO login_history (username, login_time, write_id) VALUES (?, ?, ?)", true),
+	// closes the login by its write id, a logout applied twice finds it closed and changes nothing
+	UPDATE_LOGOUT("UPDATE login_history SET logout_time=? WHERE write_id=? AND logout_time IS NULL", false),
+	INSERT_UPLOAD("INSERT OR IGNORE INTO file_tracking (username, filename, upload_time, game_channel, write_id) " +
+		"VALUES (?, ?, ?, ?, ?)", true),
+	SELECT_USERS("SELECT username, password, registration_date FROM users ORDER BY registration_date", false),
+	SELECT_USER_PAGE("SELECT username, password, registration_date FROM users " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR registration_date>=?2) AND (?3 IS NULL OR registration_date<?3) " +
+		"AND (registration_date, username)>(?4, ?5) ORDER BY registration_date, username LIMIT ?6", false),
+	SELECT_LOGIN_PAGE("SELECT id, username, login_time, logout_time FROM login_history " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR login_time>=?2) AND (?3 IS NULL OR login_time<?3) " +
+		"AND (login_time, id)>(?4, ?5) ORDER BY login_time, id LIMIT ?6", false),
+	SELECT_UPLOAD_PAGE("SELECT id, username, filename, upload_time, game_channel FROM file_tracking " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR upload_time>=?2) AND (?3 IS NULL OR upload_time<?3) " +
+		"AND (?4 IS NULL OR game_channel=?4) AND (upload_time, id)>(?5, ?6) ORDER BY upload_time, id LIMIT ?7", false),
+	COUNT_LOGINS_PER_USER("SELECT username, COUNT(*) FROM login_history " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR login_time>=?2) AND (?3 IS NULL OR login_time<?3) " +
+		"GROUP BY username ORDER BY username", false),
+	COUNT_UPLOADS_PER_USER("SELECT username, COUNT(*) FROM file_tracking " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR upload_time>=?2) AND (?3 IS NULL OR upload_time<?3) " +
+		"AND (?4 IS NULL OR game_channel=?4) GROUP BY username ORDER BY username", false),
+	COUNT_UPLOADS_PER_CHANNEL("SELECT game_channel, COUNT(*) FROM file_tracking " +
+		"WHERE (?1 IS NULL OR username=?1) AND (?2 IS NULL OR upload_time>=?2) AND (?3 IS NULL OR upload_time<?3) " +
+		"AND (?4 IS NULL OR game_channel=?4) GROUP BY game_channel ORDER BY game_channel", false);
+
+	final String sql;
+	/** whether rows queued for this statement may be sent together as one request */
+	final boolean batchable;
+
+	SqlStatement(String sql, boolean batchable) {
+		this.sql = sql;
+		this.batchable = batchable;
+	}
+}
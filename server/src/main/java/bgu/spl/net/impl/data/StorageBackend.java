@@ -0,0 +1,70 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Where {@link Database} keeps registrations, logins and file uploads.
+ * Changes may be applied asynchronously, {@link #flush()} makes every earlier change visible to the queries.
+ * Times are UTC.
+ */
+public interface StorageBackend {
+
+	void addUser(String username, String password, LocalDateTime registered);
+
+	void login(String username, LocalDateTime time);
+
+	/**
+	 * Close the latest login of the user that is still open
+	 */
+	void logout(String username, LocalDateTime time);
+
+	void trackFileUpload(String username, String filename, String gameChannel, LocalDateTime time);
+
+	/**
+	 * Block until every change made before this call is applied
+	 */
+	void flush();
+
+	/**
+	 * @return every registered user, by registration date
+	 */
+	List<UserRecord> users();
+
+	/**
+	 * Pages through the registered users ordered by registration date, then username
+	 * @param after the last user of the previous page, or null for the first page
+	 * @param limit the most users returned
+	 */
+	List<UserRecord> users(ReportFilter filter, UserRecord after, int limit);
+
+	/**
+	 * Pages through the logins ordered by login time, then id
+	 * @param after the last login of the previous page, or null for the first page
+	 * @param limit the most logins returned
+	 */
+	List<LoginRecord> logins(ReportFilter filter, LoginRecord after, int limit);
+
+	/**
+	 * Pages through the uploads ordered by upload time, then id
+	 * @param after the last upload of the previous page, or null for the first page
+	 * @param limit the most uploads returned
+	 */
+	List<UploadRecord> uploads(ReportFilter filter, UploadRecord after, int limit);
+
+	/**
+	 * @return the number of logins of each user, by username
+	 */
+	List<CountRecord> countLogins(ReportFilter filter);
+
+	/**
+	 * @param byChannel whether to count the uploads of each game channel rather than of each user
+	 * @return the number of uploads of each user or game channel, by name
+	 */
+	List<CountRecord> countUploads(ReportFilter filter, boolean byChannel);
+
+	/**
+	 * @return a one line description of the backend and its state, for the server report
+	 */
+	String describe();
+}
@@ -0,0 +1,20 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+
+public class UploadRecord {
+	/** increases in the order uploads were recorded */
+	public final long id;
+	public final String username;
+	public final String filename;
+	public final LocalDateTime uploadTime;
+	public final String gameChannel;
+
+	public UploadRecord(long id, String username, String filename, LocalDateTime uploadTime, String gameChannel) {
+		this.id = id;
+		this.username = username;
+		this.filename = filename;
+		this.uploadTime = uploadTime;
+		this.gameChannel = gameChannel;
+	}
+}
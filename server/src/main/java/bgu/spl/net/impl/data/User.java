@@ -1,10 +1,13 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 public class User {
 	public final String name;
 	public final String password;
 	private int connectionId;
 	private boolean isLoggedIn = false;
+	private final ReentrantLock lock = new ReentrantLock();
 
 	public User(int connectionId, String name, String password) {
 		this.connectionId = connectionId;
@@ -32,5 +35,13 @@ public class User {
 		this.connectionId = connectionId;
 	}
 
+	/**
+	 * Guards the login state of this user. A ReentrantLock rather than a monitor,
+	 * so a virtual thread blocked while holding it does not pin its carrier thread.
+	 */
+	public ReentrantLock getLock() {
+		return lock;
+	}
+
 
 }
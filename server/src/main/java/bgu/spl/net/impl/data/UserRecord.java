@@ -0,0 +1,15 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+
+public class UserRecord {
+	public final String username;
+	public final String password;
+	public final LocalDateTime registered;
+
+	public UserRecord(String username, String password, LocalDateTime registered) {
+		this.username = username;
+		this.password = password;
+		this.registered = registered;
+	}
+}
@@ -0,0 +1,177 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * Write-behind stage between {@link Database} and the SQL server.
+ * Statements are queued by the caller and executed in order by a single writer thread,
+ * which pipelines each batch over one pooled connection. Rows of the same batchable statement within a batch
+ * are merged into one request that executes the statement once per row; the SQL server applies each row
+ * on its own, so one bad row does not lose the others. A batch is flushed once it holds flushSize statements
+ * or flushLatency milliseconds after its first statement was taken, whichever comes first.
+ * When the queue is full, callers block until the writer catches up.
+ */
+class WriteBehindQueue implements Runnable {
+	private final BlockingQueue<Statement> queue;
+	private final SqlConnectionPool pool;
+	private final int flushSize;
+	private final long flushLatencyNanos;
+
+	WriteBehindQueue(SqlConnectionPool pool, int capacity, int flushSize, long flushLatencyMillis) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.pool = pool;
+		this.flushSize = flushSize;
+		this.flushLatencyNanos = TimeUnit.MILLISECONDS.toNanos(flushLatencyMillis);
+		Metrics.gauge("stomp_sql_write_queue_depth", "SQL statements waiting for the write-behind writer", queue::size);
+	}
+
+	void start() {
+		Thread writer = new Thread(this, "sql-write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue one execution of a statement, merged with the other rows of the statement in its batch if it is batchable
+	 */
+	void submit(SqlStatement statement, Object... params) {
+		enqueue(new Statement(statement, params, null));
+	}
+
+	/**
+	 * Block until every statement queued before this call was executed
+	 */
+	void awaitFlushed() {
+		CountDownLatch flushed = new CountDownLatch(1);
+		enqueue(new Statement(null, null, flushed));
+		try {
+			flushed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void enqueue(Statement statement) {
+		try {
+			queue.put(statement);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Statement> batch = new ArrayList<>(flushSize);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + flushLatencyNanos;
+				while (batch.size() < flushSize && batch.get(batch.size() - 1).flushed == null) {
+					Statement next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				execute(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/**
+	 * Executes the batch in order, except that every run of batchable rows between two other
+	 * statements is regrouped per statement, in the order each statement first appears in the run.
+	 */
+	private void execute(List<Statement> batch) {
+		List<SqlRequest> requests = new ArrayList<>(batch.size());
+		List<CountDownLatch> flushed = new ArrayList<>();
+		Map<SqlStatement, SqlRequest> merged = new LinkedHashMap<>();
+		for (Statement statement : batch) {
+			if (statement.statement != null && statement.statement.batchable) {
+				SqlRequest request = merged.get(statement.statement);
+				if (request == null) {
+					merged.put(statement.statement, new SqlRequest(statement.statement, statement.params));
+				} else {
+					request.addRow(statement.params);
+				}
+				continue;
+			}
+			addMerged(requests, merged);
+			if (statement.flushed != null) {
+				flushed.add(statement.flushed);
+			} else {
+				requests.add(new SqlRequest(statement.statement, statement.params));
+			}
+		}
+		addMerged(requests, merged);
+
+		send(requests);
+		for (CountDownLatch latch : flushed) {
+			latch.countDown();
+		}
+	}
+
+	private static void addMerged(List<SqlRequest> requests, Map<SqlStatement, SqlRequest> merged) {
+		requests.addAll(merged.values());
+		merged.clear();
+	}
+
+	/**
+	 * Pipelines the requests and reports the ones that failed. The SQL server names the failed rows
+	 * of a merged request, whose other rows were applied.
+	 */
+	private void send(List<SqlRequest> requests) {
+		if (requests.isEmpty()) {
+			return;
+		}
+		List<SqlResult> results = executeAll(requests);
+		for (int i = 0; results != null && i < requests.size(); i++) {
+			SqlRequest request = requests.get(i);
+			SqlResult result = results.get(i);
+			if (result.isError()) {
+				report(request, result);
+			}
+			for (Map.Entry<Integer, String> failed : result.failedRows.entrySet()) {
+				System.err.println("SQL Error: " + request.statement + " row " + failed.getKey() + ": " + failed.getValue());
+			}
+		}
+	}
+
+	private List<SqlResult> executeAll(List<SqlRequest> requests) {
+		try {
+			return pool.executeAll(requests);
+		} catch (IOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void report(SqlRequest request, SqlResult result) {
+		System.err.println("SQL Error: " + request.statement + (request.rows.size() > 1 ? " (" + request.rows.size() + " rows)" : "") +
+			": " + result.error);
+	}
+
+	private static class Statement {
+		final SqlStatement statement;
+		final Object[] params;
+		final CountDownLatch flushed;
+
+		Statement(SqlStatement statement, Object[] params, CountDownLatch flushed) {
+			this.statement = statement;
+			this.params = params;
+			this.flushed = flushed;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.api.StompMessageEncoderDecoder;
+import bgu.spl.net.impl.stomp.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.function.BiConsumer;
+
+/**
+ * One simulated client of the load generator. Only the generator's selector thread touches it.
+ */
+class LoadConnection {
+
+    enum State { CONNECTING, LOGGING_IN, SUBSCRIBING, SUBSCRIBED, CLOSED }
+
+    final int id;
+    final String user;
+    final String channel;
+    /** the index of the cluster node the connection is open to */
+    final int node;
+    State state = State.CONNECTING;
+
+    private final SocketChannel chan;
+    private final StompMessageEncoderDecoder decoder = new StompMessageEncoderDecoder();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private SelectionKey key;
+
+    LoadConnection(int id, String channel, int node, SocketChannel chan) {
+        this.id = id;
+        this.user = "load-" + id;
+        this.channel = channel;
+        this.node = node;
+        this.chan = chan;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel channel() {
+        return chan;
+    }
+
+    void send(String frame) {
+        outbound.add(ByteBuffer.wrap((frame + "\u0000").getBytes(StandardCharsets.UTF_8)));
+        if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Writes queued frames until the socket buffer is full
+     */
+    void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer next = outbound.peek();
+            chan.write(next);
+            if (next.hasRemaining()) {
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads what the socket has into the shared buffer and hands every complete frame to the sink
+     * @return false if the server closed the connection
+     */
+    boolean read(ByteBuffer buffer, BiConsumer<LoadConnection, Frame> sink) throws IOException {
+        buffer.clear();
+        int read = chan.read(buffer);
+        if (read < 0) {
+            return false;
+        }
+        buffer.flip();
+        Frame frame;
+        while ((frame = decoder.decodeNext(buffer)) != null) {
+            sink.accept(this, frame);
+        }
+        return true;
+    }
+
+    void close() {
+        state = State.CLOSED;
+        try {
+            chan.close();
+        } catch (IOException ex) {
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.srv.metrics.Histogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a running StompServer with many NIO client connections from a single selector thread.
+ * Every connection logs in, subscribes to one of the game channels and then publishes game
+ * event reports, shaped like the ones the client sends for client/data/events1.json, so that all
+ * connections together publish at the target rate. Each report carries the time it was sent,
+ * which gives the publish to MESSAGE delivery latency of every copy the subscribers receive.
+ *
+ * Setting -Dloadgen.filename= to an empty value leaves out the filename header, so the reports
+ * are not recorded in the SQL database.
+ *
+ * To measure a cluster, -Dloadgen.nodes=host:port,... adds more nodes after the one given on the command line,
+ * and the connections are spread over all of them in turn. Every report then also carries the node it was
+ * published on, and the latency of the copies delivered by another node is reported separately.
+ *
+ * usage: StompLoadGenerator host port [connections] [channels] [messages per second] [seconds] [warmup seconds]
+ */
+public class StompLoadGenerator {
+
+    private static final String SENT_AT = "load sent nanos:";
+    private static final String SENT_ON = "load sent on node:";
+    // the client reports the events file it read, which the server records in the SQL database
+    private static final String FILENAME = System.getProperty("loadgen.filename", "events1.json");
+    private static final long SETUP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final String[][] GAMES = {
+        {"Germany", "Japan"}, {"Spain", "Costa Rica"}, {"Argentina", "Saudi Arabia"}, {"France", "Australia"},
+        {"Brazil", "Serbia"}, {"Portugal", "Ghana"}, {"England", "Iran"}, {"Morocco", "Croatia"}
+    };
+
+    private final InetSocketAddress server;
+    private final List<InetSocketAddress> nodes = new ArrayList<>();
+    private final int connectionCount;
+    private final int channelCount;
+    private final int rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1 << 18);
+    private final List<LoadConnection> connections = new ArrayList<>();
+    private final Histogram latencyMicros = new Histogram();
+    private final Histogram crossNodeLatencyMicros = new Histogram();
+
+    private int subscribed = 0;
+    private int closed = 0;
+    private long errors = 0;
+    private long sent = 0;
+    private long delivered = 0;
+    private long measuredDelivered = 0;
+    private long measureFrom = Long.MAX_VALUE;
+    private long measureUntil = Long.MAX_VALUE;
+
+    public StompLoadGenerator(InetSocketAddress server, int connections, int channels, int rate, int seconds, int warmupSeconds) throws IOException {
+        this.server = server;
+        this.connectionCount = connections;
+        this.channelCount = channels;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.selector = Selector.open();
+        nodes.add(server);
+        for (String node : System.getProperty("loadgen.nodes", "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                int colon = node.lastIndexOf(':');
+                nodes.add(new InetSocketAddress(node.substring(0, colon).trim(), Integer.parseInt(node.substring(colon + 1).trim())));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: StompLoadGenerator host port [connections] [channels] [messages per second] [seconds] [warmup seconds]");
+            System.exit(1);
+        }
+        InetSocketAddress server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int connections = args.length >= 3 ? Integer.parseInt(args[2]) : 1000;
+        int channels = args.length >= 4 ? Integer.parseInt(args[3]) : 10;
+        int rate = args.length >= 5 ? Integer.parseInt(args[4]) : 1000;
+        int seconds = args.length >= 6 ? Integer.parseInt(args[5]) : 30;
+        int warmup = args.length >= 7 ? Integer.parseInt(args[6]) : 5;
+
+        new StompLoadGenerator(server, connections, channels, rate, seconds, warmup).run();
+    }
+
+    public void run() throws IOException {
+        System.out.printf("Opening %d connections to %s on %d channels%n", connectionCount, nodes, channelCount);
+        openConnections();
+        if (subscribed == 0) {
+            System.out.println("No connection managed to subscribe, giving up");
+            return;
+        }
+
+        System.out.printf("%d connections subscribed, publishing %d messages/s for %ds after a %ds warm-up%n",
+                subscribed, rate, TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        publish();
+        report();
+
+        for (LoadConnection connection : connections) {
+            connection.close();
+        }
+        selector.close();
+    }
+
+    private void openConnections() throws IOException {
+        for (int id = 0; id < connectionCount; id++) {
+            SocketChannel chan = SocketChannel.open();
+            chan.configureBlocking(false);
+            chan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            chan.connect(nodes.get(id % nodes.size()));
+            String[] game = GAMES[id % channelCount % GAMES.length];
+            String channel = "/" + game[0] + "_" + game[1] + (channelCount > GAMES.length ? "_" + (id % channelCount) : "");
+            LoadConnection connection = new LoadConnection(id, channel, id % nodes.size(), chan);
+            connection.attach(chan.register(selector, SelectionKey.OP_CONNECT, connection));
+            connections.add(connection);
+        }
+
+        long deadline = System.nanoTime() + SETUP_TIMEOUT_NANOS;
+        while (subscribed + closed < connectionCount && System.nanoTime() < deadline) {
+            poll(100);
+        }
+        if (subscribed + closed < connectionCount) {
+            System.out.printf("%d connections did not subscribe in time%n", connectionCount - subscribed - closed);
+        }
+    }
+
+    private void publish() throws IOException {
+        List<LoadConnection> publishers = new ArrayList<>();
+        for (LoadConnection connection : connections) {
+            if (connection.state == LoadConnection.State.SUBSCRIBED) {
+                publishers.add(connection);
+            }
+        }
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        measureUntil = measureFrom + durationNanos;
+        long nextProgress = start + TimeUnit.SECONDS.toNanos(1);
+        long lastDelivered = 0;
+        int next = 0;
+
+        long now;
+        while ((now = System.nanoTime()) < measureUntil) {
+            long due = (long) ((now - start) / 1e9 * rate) - sent;
+            for (; due > 0; due--) {
+                LoadConnection publisher = publishers.get(next++ % publishers.size());
+                if (publisher.state == LoadConnection.State.SUBSCRIBED) {
+                    publisher.send(report(publisher));
+                }
+                sent++;
+            }
+            poll(1);
+
+            if (now >= nextProgress) {
+                System.out.printf("  sent %d, delivered %d/s, p99 %dus, errors %d%n",
+                        sent, delivered - lastDelivered, latencyMicros.valueAtPercentile(99), errors);
+                lastDelivered = delivered;
+                nextProgress += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+
+        long drainUntil = System.nanoTime() + DRAIN_NANOS;
+        while (System.nanoTime() < drainUntil) {
+            poll(10);
+        }
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+        for (SelectionKey key : selector.selectedKeys()) {
+            LoadConnection connection = (LoadConnection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    connection.channel().finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connection.state = LoadConnection.State.LOGGING_IN;
+                    connection.send("CONNECT\n" +
+                                    "accept-version:1.2\n" +
+                                    "host:stomp.cs.bgu.ac.il\n" +
+                                    "login:" + connection.user + "\n" +
+                                    "passcode:load\n" +
+                                    "\n");
+                    continue;
+                }
+                if (key.isReadable() && !connection.read(readBuffer, this::onFrame)) {
+                    disconnected(connection);
+                    continue;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException ex) {
+                disconnected(connection);
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private void onFrame(LoadConnection connection, Frame frame) {
+        switch (frame.getCommand()) {
+            case "CONNECTED":
+                connection.state = LoadConnection.State.SUBSCRIBING;
+                connection.send("SUBSCRIBE\n" +
+                                "destination:" + connection.channel + "\n" +
+                                "id:" + connection.id + "\n" +
+                                "receipt:" + connection.id + "\n" +
+                                "\n");
+                break;
+            case "RECEIPT":
+                if (connection.state == LoadConnection.State.SUBSCRIBING) {
+                    connection.state = LoadConnection.State.SUBSCRIBED;
+                    subscribed++;
+                }
+                break;
+            case "MESSAGE":
+                onMessage(connection, frame.getBody());
+                break;
+            default:
+                if (errors++ < 5) {
+                    System.out.println("  " + connection.user + " got " + frame.getCommand() + ": " + frame.getHeaders().get("message"));
+                }
+        }
+    }
+
+    private void onMessage(LoadConnection connection, String body) {
+        long now = System.nanoTime();
+        delivered++;
+        long sentAt = field(body, SENT_AT);
+        if (sentAt >= measureFrom && sentAt < measureUntil) {
+            measuredDelivered++;
+            latencyMicros.record((now - sentAt) / 1000);
+            if (field(body, SENT_ON) != connection.node) {
+                crossNodeLatencyMicros.record((now - sentAt) / 1000);
+            }
+        }
+    }
+
+    /**
+     * @return the number following the name in the body, or -1 if the body does not have it
+     */
+    private static long field(String body, String name) {
+        int at = body.indexOf(name);
+        if (at < 0) {
+            return -1;
+        }
+        int from = at + name.length();
+        int to = body.indexOf('\n', from);
+        return Long.parseLong(body.substring(from, to < 0 ? body.length() : to));
+    }
+
+    private void disconnected(LoadConnection connection) {
+        if (connection.state == LoadConnection.State.SUBSCRIBED) {
+            subscribed--;
+        }
+        if (connection.state != LoadConnection.State.CLOSED) {
+            closed++;
+            connection.close();
+        }
+    }
+
+    /**
+     * A game event report as the client builds it from an events file, stamped with the send time
+     */
+    private String report(LoadConnection publisher) {
+        String[] teams = publisher.channel.substring(1).split("_");
+        return "SEND\n" +
+               "destination:" + publisher.channel + "\n" +
+               (FILENAME.isEmpty() ? "" : "filename:" + FILENAME + "\n") +
+               "\n" +
+               "user:" + publisher.user + "\n" +
+               "team a:" + teams[0] + "\n" +
+               "team b:" + teams[1] + "\n" +
+               "event name:goal!!!!\n" +
+               "time:1980\n" +
+               "general game updates:\n" +
+               SENT_AT + System.nanoTime() + "\n" +
+               SENT_ON + publisher.node + "\n" +
+               "team a updates:\n" +
+               "goals:1\n" +
+               "possession:90%\n" +
+               "team b updates:\n" +
+               "possession:10%\n" +
+               "description:\n" +
+               "GOOOAAALLL!!! " + teams[0] + " lead!!! Gundogan finally has success in the box as he steps up " +
+               "to take the penalty, sends Gonda the wrong way, and slots the ball into the left-hand corner!\n";
+    }
+
+    private void report() {
+        double seconds = durationNanos / 1e9;
+        System.out.println();
+        System.out.printf("connections        %d (%d closed)%n", connectionCount, closed);
+        System.out.printf("published          %d (%.0f/s)%n", sent, sent / (seconds + warmupNanos / 1e9));
+        System.out.printf("delivered          %d in the measured window (%.0f/s)%n", measuredDelivered, measuredDelivered / seconds);
+        System.out.printf("errors             %d%n", errors);
+        System.out.printf("latency us         p50 %d  p90 %d  p99 %d  p99.9 %d  max %d%n",
+                latencyMicros.valueAtPercentile(50), latencyMicros.valueAtPercentile(90),
+                latencyMicros.valueAtPercentile(99), latencyMicros.valueAtPercentile(99.9), latencyMicros.max());
+        if (nodes.size() > 1) {
+            System.out.printf("cross-node us      p50 %d  p90 %d  p99 %d  p99.9 %d  max %d  (%d copies)%n",
+                    crossNodeLatencyMicros.valueAtPercentile(50), crossNodeLatencyMicros.valueAtPercentile(90),
+                    crossNodeLatencyMicros.valueAtPercentile(99), crossNodeLatencyMicros.valueAtPercentile(99.9),
+                    crossNodeLatencyMicros.max(), crossNodeLatencyMicros.count());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -7,6 +9,7 @@ public class Frame {
     private String command;
     private Map<String, String> headers = new HashMap<>();
     private String body;
+    private ByteBuffer bodyBytes;
 
     public Frame(String command, Map<String, String> headers, String body) {
         this.command = command;
@@ -14,6 +17,16 @@ public class Frame {
         this.body = body;
     }
 
+    /**
+     * Creates a frame whose body is kept as the raw bytes it was decoded from.
+     * The bytes are only turned into a string the first time {@link #getBody()} is called.
+     */
+    public static Frame wrap(String command, Map<String, String> headers, ByteBuffer bodyBytes) {
+        Frame frame = new Frame(command, headers, (String) null);
+        frame.bodyBytes = bodyBytes;
+        return frame;
+    }
+
     public String getCommand() {
         return command;
     }
@@ -23,6 +36,9 @@ public class Frame {
     }
 
     public String getBody() {
+        if (body == null && bodyBytes != null) {
+            body = StandardCharsets.UTF_8.decode(bodyBytes.duplicate()).toString();
+        }
         return body;
     }
 
@@ -34,7 +50,7 @@ public class Frame {
             sb.append(header.getKey()).append(":").append(header.getValue()).append("\n");
         }
         sb.append("\n"); 
-        if (body != null) {
+        if (getBody() != null) {
             sb.append(body);
         }
         return sb.toString();
@@ -1,9 +1,13 @@
 package bgu.spl.net.impl.stomp;
 
+import java.io.IOException;
 import java.util.function.Supplier;
 import bgu.spl.net.api.StompMessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocolImpl;
+import bgu.spl.net.srv.ConnectionFootprint;
+import bgu.spl.net.srv.Reactor;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.metrics.MetricsHttpServer;
 
 public class StompServer {
     @SuppressWarnings({"unchecked", "rawtypes"})
@@ -17,6 +21,8 @@ public class StompServer {
         if (args.length >= 2) {
             serverType = args[1];
         }
+
+        startMetrics(System.getProperty("stomp.metrics.host", "127.0.0.1"), Integer.getInteger("stomp.metrics.port", 0));
         
         if (serverType.equals("tpc")) {
             System.out.println("Starting TPC server on port " + port);
@@ -25,6 +31,13 @@ public class StompServer {
                 (Supplier) StompMessagingProtocolImpl::new, 
                 StompMessageEncoderDecoder::new   
             ).serve();
+        } else if (serverType.equals("vthread")) {
+            System.out.println("Starting virtual thread per client server on port " + port);
+            Server.virtualThreadPerClient(
+                port,
+                (Supplier) StompMessagingProtocolImpl::new, 
+                StompMessageEncoderDecoder::new   
+            ).serve();
         } else if (serverType.equals("reactor")) {
             System.out.println("Starting Reactor server on port " + port);
             Server.reactor(
@@ -33,6 +46,40 @@ public class StompServer {
                 (Supplier) StompMessagingProtocolImpl::new, 
                 StompMessageEncoderDecoder::new   
             ).serve();
+        } else if (serverType.equals("multireactor")) {
+            // usage: <port> multireactor [selector loops] [rr|least]
+            int loops = args.length >= 3 ? Integer.parseInt(args[2]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            Reactor.Balancing balancing = args.length >= 4 && args[3].equals("least")
+                    ? Reactor.Balancing.LEAST_LOADED
+                    : Reactor.Balancing.ROUND_ROBIN;
+            System.out.println("Starting Multi-Reactor server on port " + port + " with " + loops + " selector loops");
+            Server.multiReactor(
+                Runtime.getRuntime().availableProcessors(),
+                loops,
+                balancing,
+                port,
+                (Supplier) StompMessagingProtocolImpl::new, 
+                StompMessageEncoderDecoder::new   
+            ).serve();
+        }
+    }
+
+    /**
+     * Serves the metrics over HTTP, and the heap footprint of the connections on /footprint.
+     * The endpoint has no authentication, so it is off unless stomp.metrics.port is set,
+     * and listens on the loopback address unless stomp.metrics.host names another.
+     * The STOMP server still starts if the port is taken.
+     */
+    private static void startMetrics(String host, int port) {
+        if (port <= 0) {
+            return;
+        }
+        try {
+            MetricsHttpServer.start(host, port).serve("/footprint", ConnectionFootprint::report);
+            ConnectionFootprint.markBaseline();
+            System.out.println("Serving metrics on http://" + host + ":" + port + "/metrics");
+        } catch (IOException ex) {
+            System.err.println("Metrics endpoint not started: " + ex.getMessage());
         }
     }
 }
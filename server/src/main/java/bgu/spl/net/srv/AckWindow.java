@@ -0,0 +1,219 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * The messages sent on one subscription with ack:client or ack:client-individual that the client
+ * did not acknowledge yet. Every such MESSAGE carries an ack header, "sequence-subscription id",
+ * that the client sends back in ACK or NACK. In client mode an ACK or NACK also covers every earlier
+ * message of the subscription; in client-individual mode it covers only its own message.
+ *
+ * The window holds at most stomp.ack.window messages (1024); a subscriber that lets it fill up is
+ * disconnected as a slow consumer. Messages are kept in the order they were sent, so acknowledging
+ * one message is a single removal and acknowledging a prefix removes it from the head.
+ * A NACKed message is sent again, marked redelivered:true, until it was sent stomp.ack.maxDeliveries
+ * times (5), then it is discarded.
+ * Messages replayed from the topic log are not tracked, the log keeps them.
+ */
+public class AckWindow {
+
+    static final int CAPACITY = Integer.getInteger("stomp.ack.window", 1024);
+    static final int MAX_DELIVERIES = Integer.getInteger("stomp.ack.maxDeliveries", 5);
+
+    private static final Counter REDELIVERED = Metrics.counter(
+            "stomp_ack_redelivered_total", "Messages sent again after a NACK or a reconnect");
+    private static final Counter DISCARDED = Metrics.counter(
+            "stomp_ack_discarded_total", "Unacknowledged messages dropped after stomp.ack.maxDeliveries deliveries");
+
+    public enum Mode {
+        CLIENT,
+        CLIENT_INDIVIDUAL;
+
+        /**
+         * @return the mode of an ack header, null for auto
+         * @throws IllegalArgumentException if the header names no mode
+         */
+        public static Mode parse(String header) {
+            switch (header == null ? "auto" : header) {
+                case "auto":
+                    return null;
+                case "client":
+                    return CLIENT;
+                case "client-individual":
+                    return CLIENT_INDIVIDUAL;
+                default:
+                    throw new IllegalArgumentException("ack must be auto, client or client-individual");
+            }
+        }
+    }
+
+    /**
+     * A message waiting for its acknowledgement
+     */
+    static final class Message {
+        final long sequence;
+        /** the message-id and destination headers and the body, shared with the other subscribers */
+        final ByteBuffer shared;
+        final int deliveries;
+
+        Message(long sequence, ByteBuffer shared, int deliveries) {
+            this.sequence = sequence;
+            this.shared = shared;
+            this.deliveries = deliveries;
+        }
+    }
+
+    final String subscriptionId;
+    final String destination;
+    final Mode mode;
+    // all guarded by lock, the sequence follows the order the messages were handed to the connection;
+    // a lock rather than a monitor, sending may block and must not pin a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Long, Message> inFlight = new LinkedHashMap<>();
+    private long nextSequence;
+
+    AckWindow(String subscriptionId, String destination, Mode mode) {
+        this.subscriptionId = subscriptionId;
+        this.destination = destination;
+        this.mode = mode;
+    }
+
+    /**
+     * Send a message and track it until it is acknowledged
+     * @param shared the message-id and destination headers and the body of the MESSAGE frame
+     * @param deliveries how many times the message was sent before this time, and one
+     * @return false if the window is full or the connection refused the message,
+     * the caller disconnects the slow consumer then
+     */
+    boolean send(ConnectionHandler<?> handler, ByteBuffer shared, int deliveries) {
+        lock.lock();
+        try {
+            if (inFlight.size() >= CAPACITY) {
+                return false;
+            }
+            long sequence = nextSequence++;
+            String prefix = "MESSAGE\n" +
+                            "subscription:" + subscriptionId + "\n" +
+                            "ack:" + sequence + "-" + subscriptionId + "\n" +
+                            (deliveries > 1 ? "redelivered:true\n" : "");
+            if (!handler.sendEncoded(ByteBuffer.wrap(prefix.getBytes(StandardCharsets.UTF_8)), shared.duplicate())) {
+                return false;
+            }
+            inFlight.put(sequence, new Message(sequence, shared, deliveries));
+            if (deliveries > 1) {
+                REDELIVERED.increment();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle an ACK, or a NACK, of the message with the given sequence number.
+     * An id that names no message in flight, such as one already acknowledged, is ignored.
+     * @return false if the NACKed messages could not be sent again because the subscriber is slow
+     */
+    boolean acknowledge(ConnectionHandler<?> handler, long sequence, boolean nack) {
+        lock.lock();
+        try {
+            List<Message> acknowledged = new ArrayList<>(1);
+            if (mode == Mode.CLIENT_INDIVIDUAL) {
+                Message message = inFlight.remove(sequence);
+                if (message != null) {
+                    acknowledged.add(message);
+                }
+            } else {
+                Iterator<Message> it = inFlight.values().iterator();
+                while (it.hasNext()) {
+                    Message message = it.next();
+                    if (message.sequence > sequence) {
+                        break;
+                    }
+                    it.remove();
+                    if (nack) {
+                        acknowledged.add(message);
+                    }
+                }
+            }
+            return !nack || handler == null || redeliver(handler, acknowledged);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the messages again, marked redelivered, except those already sent stomp.ack.maxDeliveries times
+     * @return false if the window filled up or the connection refused a message, the rest are not sent then
+     */
+    boolean redeliver(ConnectionHandler<?> handler, List<Message> messages) {
+        lock.lock();
+        try {
+            for (Message message : messages) {
+                if (message.deliveries >= MAX_DELIVERIES) {
+                    DISCARDED.increment();
+                } else if (!send(handler, message.shared, message.deliveries + 1)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the messages in flight, oldest first, which the window forgets
+     */
+    List<Message> drain() {
+        lock.lock();
+        try {
+            List<Message> messages = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number in an ack id made by this class for the subscription, or -1 if the id is malformed
+     */
+    static long sequenceOf(String ackId) {
+        int dash = ackId.indexOf('-');
+        if (dash <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(ackId.substring(0, dash));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the subscription id in an ack id, or null if the id is malformed
+     */
+    static String subscriptionOf(String ackId) {
+        int dash = ackId.indexOf('-');
+        return dash <= 0 ? null : ackId.substring(dash + 1);
+    }
+}
@@ -0,0 +1,99 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * The pending tasks of a single actor.
+ * Any thread may add tasks, but only the thread currently draining the mailbox removes them,
+ * so the queue is a lock-free multi-producer single-consumer linked list.
+ * A mailbox is handed to the executor only when its scheduled flag flips from false to true,
+ * which guarantees that the tasks of one actor run one at a time and in submission order.
+ */
+public class ActorMailbox implements Runnable {
+
+    private static final int DRAIN_BATCH = 64;
+    private static final LongAdder PENDING = new LongAdder();
+
+    static {
+        Metrics.gauge("stomp_actor_queue_depth", "Tasks waiting in actor mailboxes", PENDING::sum);
+    }
+
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicReference<Node> tail;
+    private Node head; // only touched by the draining thread
+
+    /**
+     * @param executor the executor that runs the mailbox once tasks are added to it
+     */
+    public ActorMailbox(Executor executor) {
+        this.executor = executor;
+        this.head = new Node(null);
+        this.tail = new AtomicReference<>(head);
+    }
+
+    public void submit(Runnable task) {
+        Node node = new Node(task);
+        PENDING.increment();
+        tail.getAndSet(node).next = node;
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Runs up to a batch of tasks, then yields the worker thread and reschedules itself
+     * if tasks are still pending, so one busy actor cannot starve the others.
+     */
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable task = poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+    }
+
+    private Runnable poll() {
+        Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+        Runnable task = next.task;
+        next.task = null;
+        head = next;
+        PENDING.decrement();
+        return task;
+    }
+
+    private boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    private static final class Node {
+        private Runnable task;
+        private volatile Node next;
+
+        private Node(Runnable task) {
+            this.task = task;
+        }
+    }
+}
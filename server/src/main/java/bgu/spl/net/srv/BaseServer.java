@@ -1,11 +1,14 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.BulkMessageDecoder;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
-import bgu.spl.net.api.StompMessagingProtocol; 
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.Frame;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -40,6 +43,7 @@ public abstract class BaseServer<T> implements Server<T> {
             while (!Thread.currentThread().isInterrupted()) {
 
                 Socket clientSock = serverSocket.accept();
+                clientSock.setTcpNoDelay(true);
 
                 StompMessagingProtocol<T> stompProtocol = protocolFactory.get();
                 
@@ -56,12 +60,22 @@ public abstract class BaseServer<T> implements Server<T> {
                     public boolean shouldTerminate() {
                         return stompProtocol.shouldTerminate();
                     }
+
+                    @Override
+                    public void connectionClosed() {
+                        stompProtocol.connectionClosed();
+                    }
                 };
 
+                MessageEncoderDecoder<T> encdec = encdecFactory.get();
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
-                        encdecFactory.get(),
-                        adapter); 
+                        encdec,
+                        adapter,
+                        writers());
+                if (encdec instanceof BulkMessageDecoder) {
+                    handler.useBulkDecoder(bulkDecoder(encdec), stompProtocol::process);
+                }
 
                 connections.connect(connectionIdCounter, handler);
                 connectionIdCounter++;
@@ -75,6 +89,11 @@ public abstract class BaseServer<T> implements Server<T> {
         System.out.println("server closed");
     }
 
+    @SuppressWarnings("unchecked")
+    private static BulkMessageDecoder<Frame> bulkDecoder(MessageEncoderDecoder<?> encdec) {
+        return (BulkMessageDecoder<Frame>) encdec;
+    }
+
     @Override
     public void close() throws IOException {
 		if (sock != null)
@@ -82,4 +101,11 @@ public abstract class BaseServer<T> implements Server<T> {
     }
 
     protected abstract void execute(BlockingConnectionHandler<T>  handler);
+
+    /**
+     * @return the executor that writes the connections' queued messages, by default a bounded pool of platform threads
+     */
+    protected Executor writers() {
+        return BlockingConnectionHandler.sharedWriters();
+    }
 }   
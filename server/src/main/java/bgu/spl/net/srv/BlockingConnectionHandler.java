@@ -1,25 +1,104 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.BulkMessageDecoder;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13;
+    private static final long ABORT_WRITE_MILLIS = 100;
+    private static final Counter BYTES_READ = Metrics.counter("stomp_bytes_read_total", "Bytes read from clients");
+    private static final Counter BYTES_WRITTEN = Metrics.counter("stomp_bytes_written_total", "Bytes written to clients");
+    private static final Counter HEARTBEATS_SENT = Metrics.counter(
+            "stomp_heartbeats_sent_total", "Heart-beat EOLs sent to clients that were not written to for their interval");
+    private static final Counter HEARTBEAT_TIMEOUTS = Metrics.counter(
+            "stomp_heartbeat_timeouts_total", "Connections closed because the client stopped heart-beating");
+    private static final ByteBuffer EOL = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+    // stomp.writers platform threads (four per core) shared by the connections that have no writer of their own;
+    // a peer that stops reading holds one of them until its outbound limits close it
+    private static final ThreadPoolExecutor WRITERS = new ThreadPoolExecutor(
+            Integer.getInteger("stomp.writers", 4 * Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("stomp.writers", 4 * Runtime.getRuntime().availableProcessors()),
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+                Thread writer = new Thread(task, "stomp-writer");
+                writer.setDaemon(true);
+                return writer;
+            });
+
+    static {
+        WRITERS.allowCoreThreadTimeOut(true);
+    }
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
+    private final Executor writers;
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private Consumer<ByteBuffer> bulkReader;
+
+    // heart-beating, the reading thread wakes up from the socket's read timeout to check the deadlines
+    private volatile long heartbeatSendNanos;
+    private volatile long heartbeatIdleNanos;
+    private long lastReadNanos = System.nanoTime();
+    private volatile long lastWriteNanos = lastReadNanos;
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
+        this(sock, reader, protocol, WRITERS);
+    }
+
+    /**
+     * @param writers runs the tasks that write the queued messages, at most one at a time for this connection
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol,
+                                     Executor writers) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.writers = writers;
+    }
+
+    /**
+     * @return the bounded pool of platform writer threads the connections share by default
+     */
+    static Executor sharedWriters() {
+        return WRITERS;
+    }
+
+    /**
+     * Reads the socket in chunks and hands each chunk to the given decoder as a whole
+     * instead of feeding {@link MessageEncoderDecoder#decodeNextByte} one byte at a time.
+     */
+    public <M> void useBulkDecoder(BulkMessageDecoder<M> decoder, Consumer<M> sink) {
+        bulkReader = buf -> {
+            M nextMessage;
+            while (!protocol.shouldTerminate() && (nextMessage = decoder.decodeNext(buf)) != null) {
+                sink.accept(nextMessage);
+            }
+        };
     }
 
     @Override
@@ -30,13 +109,22 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
+            if (bulkReader != null) {
+                byte[] chunk = new byte[READ_CHUNK_SIZE];
+                while (!protocol.shouldTerminate() && connected && (read = read(chunk)) >= 0) {
+                    BYTES_READ.add(read);
+                    bulkReader.accept(ByteBuffer.wrap(chunk, 0, read));
+                }
+                return;
+            }
+
+            while (!protocol.shouldTerminate() && connected && (read = read()) >= 0) {
+                BYTES_READ.increment();
                 T nextMessage = encdec.decodeNextByte((byte) read);
                 if (nextMessage != null) {
                     T response = protocol.process(nextMessage);
                     if (response != null) {
-                        out.write(encdec.encode(response));
-                        out.flush();
+                        send(response);
                     }
                 }
             }
@@ -46,25 +134,193 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             } else {
                ex.printStackTrace();
             }
+        } finally {
+            connected = false;
+            outbound.close();
+            protocol.connectionClosed();
+        }
+
+    }
+
+    /**
+     * Reads like {@link BufferedInputStream#read(byte[])}, heart-beating while the client is silent
+     * @return -1 at the end of the stream, or once the client was silent for longer than its heart-beat allows
+     */
+    private int read(byte[] chunk) throws IOException {
+        while (true) {
+            try {
+                int read = in.read(chunk);
+                lastReadNanos = System.nanoTime();
+                if (heartbeatSendNanos > 0) {
+                    heartbeatDue(); // a chatty client never lets the read time out
+                }
+                return read;
+            } catch (SocketTimeoutException ex) {
+                if (!heartbeatDue()) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads like {@link BufferedInputStream#read()}, heart-beating while the client is silent
+     */
+    private int read() throws IOException {
+        while (true) {
+            try {
+                int read = in.read();
+                lastReadNanos = System.nanoTime();
+                if (heartbeatSendNanos > 0) {
+                    heartbeatDue(); // a chatty client never lets the read time out
+                }
+                return read;
+            } catch (SocketTimeoutException ex) {
+                if (!heartbeatDue()) {
+                    return -1;
+                }
+            }
         }
+    }
 
+    /**
+     * Called after each read and when the socket was silent for its read timeout,
+     * sends an EOL if nothing was written lately
+     * @return false if the client was silent for longer than its heart-beat allows
+     */
+    private boolean heartbeatDue() {
+        long now = System.nanoTime();
+        if (heartbeatIdleNanos > 0 && now - lastReadNanos >= heartbeatIdleNanos) {
+            HEARTBEAT_TIMEOUTS.increment();
+            return false;
+        }
+        if (heartbeatSendNanos > 0 && now - lastWriteNanos >= heartbeatSendNanos && outbound.isEmpty()) {
+            outbound.add(new ByteBuffer[] { EOL.duplicate() });
+            scheduleDrain();
+            HEARTBEATS_SENT.increment();
+        }
+        return true;
+    }
+
+    /**
+     * The read timeout is the shorter interval, so the reading thread checks both deadlines in time
+     */
+    @Override
+    public void heartbeat(long sendMillis, long idleMillis) {
+        heartbeatSendNanos = TimeUnit.MILLISECONDS.toNanos(sendMillis);
+        heartbeatIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        long timeout = sendMillis <= 0 ? idleMillis : idleMillis <= 0 ? sendMillis : Math.min(sendMillis, idleMillis);
+        if (timeout <= 0) {
+            return;
+        }
+        try {
+            sock.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        } catch (SocketException ex) {
+            ex.printStackTrace();
+        }
     }
 
     @Override
     public void close() throws IOException {
         connected = false;
+        outbound.close();
         sock.close();
     }
 
+    /**
+     * Waits for the socket, so the connection's own responses are written before it returns
+     */
     @Override
     public void send(T msg) {
+        if (msg != null) {
+            outbound.add(new ByteBuffer[] { ByteBuffer.wrap(encdec.encode(msg)) });
+            sendLock.lock();
+            drain();
+        }
+    }
+
+    /**
+     * Queues the message and returns without waiting for the socket, the queue is written
+     * by a writer task. A peer that stops reading therefore stalls a writer
+     * instead of the publisher, while its queue fills up to the outbound limits.
+     */
+    @Override
+    public boolean sendEncoded(ByteBuffer... parts) {
+        if (!outbound.offer(parts)) {
+            return false;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    @Override
+    public void sendBacklog(Iterator<ByteBuffer[]> backlog) {
+        outbound.addBacklog(backlog);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            writers.execute(() -> {
+                drainScheduled.set(false);
+                sendLock.lock();
+                drain();
+            });
+        }
+    }
+
+    @Override
+    public void abort(T lastMessage) {
+        outbound.clear();
+        outbound.add(new ByteBuffer[] { ByteBuffer.wrap(encdec.encode(lastMessage)) });
         try {
-            if (msg != null) {
-                out.write(encdec.encode(msg));
-                out.flush();
+            // the socket may be stuck under another publisher's write, give up on the message then
+            if (sendLock.tryLock(ABORT_WRITE_MILLIS, TimeUnit.MILLISECONDS)) {
+                drain();
             }
+            close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes every queued message, called with the send lock held and releases it
+     */
+    private void drain() {
+        try {
+            ByteBuffer[] frame;
+            while ((frame = outbound.poll()) != null) {
+                for (ByteBuffer part : frame) {
+                    write(part);
+                }
+            }
+            out.flush();
+            lastWriteNanos = System.nanoTime();
         } catch (IOException e) {
-            e.printStackTrace();
+            outbound.clear();
+            if (connected) {
+                e.printStackTrace();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer part) throws IOException {
+        BYTES_WRITTEN.add(part.remaining());
+        if (part.hasArray()) {
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            part.position(part.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(part.remaining(), READ_CHUNK_SIZE)];
+        while (part.hasRemaining()) {
+            int length = Math.min(chunk.length, part.remaining());
+            part.get(chunk, 0, length);
+            out.write(chunk, 0, length);
         }
     }
 }
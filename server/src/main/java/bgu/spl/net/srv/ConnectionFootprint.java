@@ -0,0 +1,83 @@
+package bgu.spl.net.srv;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.function.LongSupplier;
+
+import bgu.spl.net.api.ScratchPool;
+
+/**
+ * Measures how much heap each open connection costs, for sizing a server with many mostly idle clients.
+ * The report compares the heap in use after full collections with the heap in use at startup, before
+ * any connection, and divides the difference by the open connections. That figure also carries whatever
+ * else the heap gained since startup, so the report also compares with the previous report: open more
+ * idle connections between two reports, for example with the load generator at a rate of 0, and the
+ * marginal figure is what one more connection costs. The collections make the report expensive,
+ * so it is only built when asked for, on GET /footprint of the metrics endpoint.
+ */
+public final class ConnectionFootprint {
+
+    private static final int COLLECTIONS = 3;
+
+    // like the gauges of the metrics, the latest ConnectionsImpl of the process is the one reported
+    private static volatile LongSupplier openConnections;
+    private static volatile long baselineBytes = -1;
+    // the previous report, guarded by the class
+    private static long lastConnections = -1;
+    private static long lastHeapBytes;
+
+    private ConnectionFootprint() {
+    }
+
+    static void track(LongSupplier connections) {
+        openConnections = connections;
+    }
+
+    /**
+     * Measures the heap the report compares with, call it before the server accepts connections
+     */
+    public static void markBaseline() {
+        baselineBytes = heapAfterCollections();
+    }
+
+    /**
+     * @return the measurement, one "name value" line each, runs full collections
+     */
+    public static synchronized String report() {
+        LongSupplier connections = openConnections;
+        long open = connections == null ? 0 : connections.getAsLong();
+        long heap = heapAfterCollections();
+        StringBuilder out = new StringBuilder(256);
+        out.append("connections ").append(open).append('\n');
+        out.append("heap_used_bytes ").append(heap).append('\n');
+        if (baselineBytes >= 0) {
+            out.append("baseline_heap_used_bytes ").append(baselineBytes).append('\n');
+            if (open > 0) {
+                out.append("bytes_per_connection ").append((heap - baselineBytes) / open).append('\n');
+            }
+        }
+        if (lastConnections >= 0 && open != lastConnections) {
+            out.append("marginal_bytes_per_connection ")
+               .append((heap - lastHeapBytes) / (open - lastConnections)).append('\n');
+        }
+        lastConnections = open;
+        lastHeapBytes = heap;
+        out.append("decoder_scratch_held_bytes ").append(ScratchPool.heldBytes()).append('\n');
+        out.append("decoder_scratch_pooled_bytes ").append(ScratchPool.pooledBytes()).append('\n');
+        out.append("write_batches_held ").append(NonBlockingConnectionHandler.batchesHeld()).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * The least heap in use over a few collections, a single one may leave garbage behind
+     */
+    private static long heapAfterCollections() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < COLLECTIONS; i++) {
+            memory.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
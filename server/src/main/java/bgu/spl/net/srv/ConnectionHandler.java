@@ -6,6 +6,8 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +21,43 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a message that was already encoded, as the concatenation of the given buffers.
+     * The buffers may share their content with buffers given to other handlers,
+     * so implementations must only consume them and never write into them.
+     *
+     * The message counts against the connection's outbound limits, see {@link OutboundQueue}.
+     *
+     * @param parts the encoded message, in order
+     * @return false if the message was refused because the connection is a slow consumer
+     * that should be disconnected
+     */
+    boolean sendEncoded(ByteBuffer... parts);
+
+    /**
+     * Streams encoded messages ahead of the messages sent later. The next message is only
+     * taken from the iterator once the connection is ready to write it, and the backlog
+     * does not count against the outbound limits.
+     *
+     * @param backlog the encoded messages, each as the parts of {@link #sendEncoded}
+     */
+    void sendBacklog(Iterator<ByteBuffer[]> backlog);
+
+    /**
+     * Drops every message still waiting to be written, sends the given message
+     * and closes the connection once it was written.
+     *
+     * @param lastMessage the message to send before closing, usually an ERROR frame
+     */
+    void abort(T lastMessage);
+
+    /**
+     * Starts the heart-beating negotiated on CONNECT.
+     *
+     * @param sendMillis the longest the connection may go without writing, an EOL is sent then, 0 for never
+     * @param idleMillis the longest the peer may go without sending anything before the connection is
+     *                   closed as dead, 0 for never
+     */
+    void heartbeat(long sendMillis, long idleMillis);
+
 }
@@ -1,54 +1,276 @@
 package bgu.spl.net.srv;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.srv.cluster.ClusterNode;
+import bgu.spl.net.srv.log.MessageLog;
+import bgu.spl.net.srv.log.TopicLog;
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.LabeledCounter;
+import bgu.spl.net.srv.metrics.Metrics;
+
+public class ConnectionsImpl<T> implements Connections<T>, ClusterNode.LocalTopics {
+    private static final LabeledCounter FRAMES_OUT = Metrics.labeledCounter(
+            "stomp_frames_out_total", "Frames sent to clients", "command",
+            "CONNECTED", "MESSAGE", "RECEIPT", "ERROR");
+    private static final Histogram FAN_OUT = Metrics.histogram(
+            "stomp_fan_out_subscribers", "Subscribers each published message was delivered to");
+    private static final Counter FILTERED = Metrics.counter(
+            "stomp_messages_filtered_total", "Messages not sent to a subscriber because its selector did not match");
+    private static final ByteBuffer NUL = ByteBuffer.wrap(new byte[] { 0 }).asReadOnlyBuffer();
 
-public class ConnectionsImpl<T> implements Connections<T> {
     private final ConcurrentHashMap<Integer, ConnectionHandler<T>> connectionMap = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> topics = new ConcurrentHashMap<>();
-    private int messageIdCounter = 0;
+    private final TopicRegistry topics = new TopicRegistry(Integer.getInteger("stomp.topics.shards", 64));
+    // the wildcard destinations that have subscribers, each also a topic of the registry
+    private final DestinationTrie patterns = new DestinationTrie();
+    // connectionId -> (subscriptionId -> channel), each index is guarded by its own lock
+    private final ConcurrentHashMap<Integer, SubscriptionIndex> subscriptionsOf = new ConcurrentHashMap<>();
+    // connectionId -> (subscriptionId -> window) for the subscriptions that ask for acknowledgements
+    private final ConcurrentHashMap<Integer, Map<String, AckWindow>> windowsOf = new ConcurrentHashMap<>();
+    // connectionId -> the user logged in on it, to park its unacknowledged messages under
+    private final ConcurrentHashMap<Integer, String> usersOf = new ConcurrentHashMap<>();
+    private final RedeliveryStore redeliveries = new RedeliveryStore();
+    private final MessageIdGenerator messageIds = new MessageIdGenerator();
+    // null unless the durable topic log is configured
+    private final MessageLog log = MessageLog.fromSystemProperties();
+    // null unless this server is a cluster node, created last since its peers may call back at once
+    private final ClusterNode cluster = ClusterNode.fromSystemProperties(this);
+
+    public ConnectionsImpl() {
+        Metrics.gauge("stomp_active_connections", "Connections currently open", connectionMap::size);
+        Metrics.gauge("stomp_active_subscriptions", "Subscriptions over all topics", topics::subscriptionCount);
+        Metrics.gauge("stomp_topics", "Topics with at least one subscriber", topics::topicCount);
+        Metrics.gauge("stomp_ack_in_flight", "Messages on acknowledged subscriptions waiting for their ACK", this::inFlightCount);
+        Metrics.gauge("stomp_ack_parked_messages", "Unacknowledged messages kept for their users to reconnect",
+                redeliveries::messageCount);
+        ConnectionFootprint.track(connectionMap::size);
+    }
 
     @Override
     public boolean send(int connectionId, T msg) {
         ConnectionHandler<T> handler = connectionMap.get(connectionId);
         if(handler != null){
+            FRAMES_OUT.labels(commandOf(msg)).increment();
             handler.send(msg);
             return true;
         }   
         return false;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Starts the heart-beating negotiated on CONNECT, see {@link ConnectionHandler#heartbeat}
+     */
+    public void heartbeat(int connectionId, long sendMillis, long idleMillis) {
+        ConnectionHandler<T> handler = connectionMap.get(connectionId);
+        if (handler != null) {
+            handler.heartbeat(sendMillis, idleMillis);
+        }
+    }
+
+    /**
+     * Sends a MESSAGE frame to every subscriber of the channel, and forwards the message to the
+     * cluster nodes that have subscribers for the channel.
+     */
     @Override
     public void send(String channel, T msg) {
-        ConcurrentHashMap<Integer, String> subscribers = topics.get(channel);
-        if (subscribers != null) {
-            String msgId = Integer.toString(messageIdCounter++);
-
-            for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
-                Integer connectionId = entry.getKey();
-                String subscriptionId = entry.getValue();
-
-                String frame = "MESSAGE\n" +
-                               "subscription:" + subscriptionId + "\n" +
-                               "message-id:" + msgId + "\n" +
-                               "destination:" + channel + "\n" +
-                               "\n" +
-                               msg; 
-
-                send(connectionId, (T) frame);
+        byte[] body = String.valueOf(msg).getBytes(StandardCharsets.UTF_8);
+        deliver(channel, body);
+        if (cluster != null) {
+            cluster.publish(channel, body);
+        }
+    }
+
+    /**
+     * Sends a MESSAGE frame to every subscriber of the channel on this server, and to the subscribers
+     * of every wildcard destination matching it.
+     * Everything after the subscription header is the same for all subscribers,
+     * so it is encoded once and only the small per-subscriber prefix is encoded per handler.
+     * When the topic log is on, the message is appended to the channel's log first
+     * and its offset in the log is sent in an offset header, next to its message-id.
+     * Subscribers whose selector does not match the message get nothing; the body's fields are
+     * parsed only if the topic has such subscribers, and each distinct selector is evaluated once.
+     */
+    @Override
+    public void deliver(String channel, byte[] body) {
+        TopicLog topicLog = topicLog(channel);
+        long offset = -1;
+        if (topicLog != null) {
+            try {
+                offset = topicLog.append(body);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        TopicRegistry.Subscriber[] subscribers = topics.subscribers(channel);
+        String[] matched = patterns.match(channel);
+        if (subscribers.length > 0 || matched.length > 0) {
+            Delivery delivery = new Delivery(channel, body, topicLog, offset);
+            delivery.to(subscribers, true);
+            for (String pattern : matched) {
+                delivery.to(topics.subscribers(pattern), false);
+            }
+            FRAMES_OUT.labels("MESSAGE").add(delivery.delivered);
+            FAN_OUT.record(delivery.delivered);
+            if (delivery.filtered > 0) {
+                FILTERED.add(delivery.filtered);
+            }
+        }
+    }
+
+    /**
+     * One message on its way to the subscribers of its channel and of the wildcard destinations matching it
+     */
+    private final class Delivery {
+        private final String channel;
+        private final byte[] body;
+        private final TopicLog topicLog;
+        private final long offset;
+        private ByteBuffer sharedBytes;
+        private Map<String, String> fields;
+        int delivered;
+        int filtered;
+
+        Delivery(String channel, byte[] body, TopicLog topicLog, long offset) {
+            this.channel = channel;
+            this.body = body;
+            this.topicLog = topicLog;
+            this.offset = offset;
+        }
+
+        /**
+         * @param replayable whether the subscribers are of the channel itself, whose log they may be replaying
+         */
+        void to(TopicRegistry.Subscriber[] subscribers, boolean replayable) {
+            MessageSelector selector = null;
+            boolean selected = true;
+            for (TopicRegistry.Subscriber subscriber : subscribers) {
+                if (subscriber.selector != selector) {
+                    // subscribers are grouped by selector, so this runs once per distinct selector
+                    selector = subscriber.selector;
+                    if (selector != null && fields == null) {
+                        fields = MessageSelector.fields(body);
+                    }
+                    selected = selector == null || selector.matches(fields);
+                }
+                if (!selected) {
+                    filtered++;
+                    continue;
+                }
+                ConnectionHandler<T> handler = connectionMap.get(subscriber.connectionId);
+                if (replayable && offset >= 0 && !topicLog.isLive(subscriber.connectionId, offset)) {
+                    continue; // the subscriber is replaying the log up to a later offset
+                }
+                if (handler != null) {
+                    boolean accepted;
+                    if (subscriber.window != null) {
+                        accepted = subscriber.window.send(handler, sharedBytes(), 1);
+                    } else {
+                        String prefix = "MESSAGE\n" +
+                                        "subscription:" + subscriber.subscriptionId + "\n";
+                        accepted = handler.sendEncoded(
+                                ByteBuffer.wrap(prefix.getBytes(StandardCharsets.UTF_8)),
+                                sharedBytes().duplicate());
+                    }
+                    if (accepted) {
+                        delivered++;
+                    } else {
+                        disconnectSlowConsumer(subscriber.connectionId, handler);
+                    }
+                }
             }
         }
+
+        private ByteBuffer sharedBytes() {
+            if (sharedBytes == null) {
+                byte[] headers = ("message-id:" + messageIds.next() + "\n" +
+                                  (offset >= 0 ? "offset:" + offset + "\n" : "") +
+                                  "destination:" + channel + "\n" +
+                                  "\n").getBytes(StandardCharsets.UTF_8);
+                sharedBytes = ByteBuffer.allocate(headers.length + body.length + 1)
+                        .put(headers).put(body).put((byte) 0).flip().asReadOnlyBuffer();
+            }
+            return sharedBytes;
+        }
+    }
+
+    /**
+     * Disconnects a subscriber whose outbound queue is over its limits, so it stops
+     * holding memory for messages it does not read
+     */
+    @SuppressWarnings("unchecked")
+    private void disconnectSlowConsumer(int connectionId, ConnectionHandler<T> handler) {
+        disconnect(connectionId);
+        String error = "ERROR\n" +
+                       "message:slow consumer\n" +
+                       "\n" +
+                       "The connection was closed because it did not keep up with its subscriptions.\n";
+        FRAMES_OUT.labels("ERROR").increment();
+        handler.abort((T) error);
+    }
+
+    private static String commandOf(Object msg) {
+        String frame = String.valueOf(msg);
+        int eol = frame.indexOf('\n');
+        return eol < 0 ? frame : frame.substring(0, eol);
+    }
+
+    /*package*/ long subscriptionCount() {
+        return topics.subscriptionCount();
+    }
+
+    /**
+     * @return the connections with a subscription index, only the open ones ever have one
+     */
+    /*package*/ int indexedConnections() {
+        return subscriptionsOf.size();
     }
 
+    private long inFlightCount() {
+        long count = 0;
+        for (Map<String, AckWindow> windows : windowsOf.values()) {
+            for (AckWindow window : windows.values()) {
+                count += window.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the connection's subscriptions. The connection is removed before its index is, and subscribe
+     * checks both under the index's lock, so a subscription racing with the disconnect is never left behind.
+     * The messages still waiting for an ACK are kept
+     * for its user to receive again on its next acknowledged subscription to the same destination.
+     */
     @Override
     public void disconnect(int connectionId) {
         Database.getInstance().logout(connectionId);
 
         connectionMap.remove(connectionId);
-        for (ConcurrentHashMap<Integer, String> topicMap : topics.values()) {
-            topicMap.remove(connectionId);
+        SubscriptionIndex subscriptions = subscriptionsOf.remove(connectionId);
+        if (subscriptions != null) {
+            subscriptions.lock.lock();
+            try {
+                for (Map.Entry<String, String> subscription : subscriptions.channels.entrySet()) {
+                    removeSubscriber(subscription.getValue(), connectionId, subscription.getKey());
+                }
+            } finally {
+                subscriptions.lock.unlock();
+            }
+        }
+        String user = usersOf.remove(connectionId);
+        Map<String, AckWindow> windows = windowsOf.remove(connectionId);
+        if (windows != null && user != null) {
+            for (AckWindow window : windows.values()) {
+                redeliveries.park(user, window.destination, window.drain());
+            }
         }
     }
     
@@ -56,30 +278,226 @@ public class ConnectionsImpl<T> implements Connections<T> {
         connectionMap.put(connectionId, handler);
     }
 
+    @Override
+    public boolean hasSubscribers(String channel) {
+        return topics.hasSubscribers(channel);
+    }
+
+    /**
+     * @return true if the connection subscribed to the channel or to a wildcard destination matching it
+     */
     public boolean isSubscribed(String channel, int connectionId) {
-        return topics.containsKey(channel) && topics.get(channel).containsKey(connectionId);
+        if (topics.isSubscribed(channel, connectionId)) {
+            return true;
+        }
+        for (String pattern : patterns.match(channel)) {
+            if (topics.isSubscribed(pattern, connectionId)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public boolean connect(int connectionId, String username, String password) {
         LoginStatus status = Database.getInstance().login(connectionId, username, password);
         
-        return status == LoginStatus.LOGGED_IN_SUCCESSFULLY || 
-               status == LoginStatus.ADDED_NEW_USER;
+        boolean loggedIn = status == LoginStatus.LOGGED_IN_SUCCESSFULLY ||
+                           status == LoginStatus.ADDED_NEW_USER;
+        if (loggedIn) {
+            usersOf.put(connectionId, username);
+        }
+        return loggedIn;
     }
 
     public void subscribe(String channel, int connectionId, String subscriptionId) {
-        topics.putIfAbsent(channel, new ConcurrentHashMap<>());
-        
-        topics.get(channel).put(connectionId, subscriptionId);
+        subscribe(channel, connectionId, subscriptionId, null, null);
+    }
+
+    /**
+     * An acknowledged subscription first receives again the messages its user left unacknowledged
+     * on the same destination when its earlier connection closed.
+     *
+     * @param selector null to receive every message of the channel
+     * @param ack null for ack:auto
+     */
+    public void subscribe(String channel, int connectionId, String subscriptionId, MessageSelector selector,
+                          AckWindow.Mode ack) {
+        register(channel, connectionId, subscriptionId, selector, ack);
+    }
+
+    /**
+     * @return false if the connection closed before the subscription could be added
+     */
+    private boolean register(String channel, int connectionId, String subscriptionId, MessageSelector selector,
+                             AckWindow.Mode ack) {
+        AckWindow window = null;
+        ConnectionHandler<T> handler = connectionMap.get(connectionId);
+        String user = usersOf.get(connectionId);
+        if (ack != null) {
+            window = new AckWindow(subscriptionId, channel, ack);
+            if (user != null && handler != null) {
+                window.redeliver(handler, redeliveries.take(user, channel));
+            }
+        }
+
+        SubscriptionIndex subscriptions = subscriptionsOf.computeIfAbsent(connectionId, id -> new SubscriptionIndex());
+        AckWindow replacedWindow;
+        subscriptions.lock.lock();
+        try {
+            if (subscriptionsOf.get(connectionId) != subscriptions || !connectionMap.containsKey(connectionId)) {
+                // the connection closed meanwhile, its disconnect already took or is about to take the index
+                if (subscriptions.channels.isEmpty()) {
+                    subscriptionsOf.remove(connectionId, subscriptions);
+                }
+                if (window != null && user != null) {
+                    redeliveries.park(user, channel, window.drain());
+                }
+                return false;
+            }
+            String replacedId = topics.subscribe(channel, connectionId, subscriptionId, selector, window);
+            if (replacedId != null && !replacedId.equals(subscriptionId)) {
+                subscriptions.channels.remove(replacedId);
+                removeWindow(connectionId, replacedId);
+            }
+            String replacedChannel = subscriptions.channels.put(subscriptionId, channel);
+            if (replacedChannel != null && !replacedChannel.equals(channel)) {
+                removeSubscriber(replacedChannel, connectionId, subscriptionId);
+            }
+            replacedWindow = window == null
+                    ? removeWindow(connectionId, subscriptionId)
+                    : windowsOf.computeIfAbsent(connectionId, id -> new ConcurrentHashMap<>()).put(subscriptionId, window);
+        } finally {
+            subscriptions.lock.unlock();
+        }
+        if (replacedWindow != null && window != null && handler != null) {
+            window.redeliver(handler, replacedWindow.drain());
+        }
+        subscribersChanged(channel);
+        return true;
+    }
+
+    /**
+     * Handles the id of an ACK or NACK frame. An id of a message that is no longer waiting, such as one
+     * acknowledged before or one of a closed subscription, is ignored. A NACKed message is sent again.
+     *
+     * @return false if the id is not of the form this server gives out
+     */
+    public boolean acknowledge(int connectionId, String ackId, boolean nack) {
+        long sequence = AckWindow.sequenceOf(ackId);
+        if (sequence < 0) {
+            return false;
+        }
+        Map<String, AckWindow> windows = windowsOf.get(connectionId);
+        AckWindow window = windows == null ? null : windows.get(AckWindow.subscriptionOf(ackId));
+        if (window != null) {
+            ConnectionHandler<T> handler = connectionMap.get(connectionId);
+            if (!window.acknowledge(handler, sequence, nack) && handler != null) {
+                disconnectSlowConsumer(connectionId, handler);
+            }
+        }
+        return true;
+    }
+
+    private AckWindow removeWindow(int connectionId, String subscriptionId) {
+        Map<String, AckWindow> windows = windowsOf.get(connectionId);
+        return windows == null ? null : windows.remove(subscriptionId);
+    }
+
+    /**
+     * Subscribes and replays the channel's log from the given offset, then delivers
+     * the messages published from now on. Without a topic log this is a plain subscribe.
+     * The replay skips the messages the selector does not match.
+     *
+     * @param selector null to receive every message of the channel
+     * @param ack null for ack:auto, replayed messages are not acknowledged
+     * @param replayFrom the log offset, as sent in the offset header, to replay from, 0 for the oldest retained message
+     */
+    public void subscribe(String channel, int connectionId, String subscriptionId, MessageSelector selector,
+                          AckWindow.Mode ack, long replayFrom) {
+        TopicLog topicLog = topicLog(channel);
+        if (topicLog == null) {
+            subscribe(channel, connectionId, subscriptionId, selector, ack);
+            return;
+        }
+
+        long cut = topicLog.subscribe(connectionId,
+                () -> register(channel, connectionId, subscriptionId, selector, ack));
+        ConnectionHandler<T> handler = connectionMap.get(connectionId);
+        if (cut >= 0 && handler != null) {
+            handler.sendBacklog(topicLog.replay(replayFrom, cut, (offset, body) -> selector != null
+                    && !selector.matches(MessageSelector.fields(body)) ? null : new ByteBuffer[] {
+                    ByteBuffer.wrap(("MESSAGE\n" +
+                                     "subscription:" + subscriptionId + "\n" +
+                                     "message-id:" + messageIds.next() + "\n" +
+                                     "offset:" + offset + "\n" +
+                                     "destination:" + channel + "\n" +
+                                     "\n").getBytes(StandardCharsets.UTF_8)),
+                    body,
+                    NUL.duplicate()
+            }));
+        }
     }
 
     public void unsubscribe(String subscriptionId, int connectionId) {
-        for (Map.Entry<String, ConcurrentHashMap<Integer, String>> topicEntry : topics.entrySet()) {
-            ConcurrentHashMap<Integer, String> subscribers = topicEntry.getValue();
-            
-            if (subscribers.containsKey(connectionId) && subscribers.get(connectionId).equals(subscriptionId)) {
-                subscribers.remove(connectionId);
+        SubscriptionIndex subscriptions = subscriptionsOf.get(connectionId);
+        if (subscriptions == null) {
+            return;
+        }
+        subscriptions.lock.lock();
+        try {
+            String channel = subscriptions.channels.remove(subscriptionId);
+            if (channel != null) {
+                removeSubscriber(channel, connectionId, subscriptionId);
             }
+            removeWindow(connectionId, subscriptionId);
+        } finally {
+            subscriptions.lock.unlock();
         }
     }
+
+    private void removeSubscriber(String channel, int connectionId, String subscriptionId) {
+        topics.unsubscribe(channel, connectionId, subscriptionId);
+        TopicLog topicLog = log != null ? log.find(channel) : null;
+        if (topicLog != null) {
+            topicLog.forget(connectionId);
+        }
+        subscribersChanged(channel);
+    }
+
+    /**
+     * Called after every change to the subscribers of the channel, which may be a wildcard destination
+     */
+    private void subscribersChanged(String channel) {
+        if (DestinationTrie.isPattern(channel)) {
+            patterns.update(channel, () -> topics.hasSubscribers(channel));
+        }
+        if (cluster != null) {
+            cluster.interestChanged(channel);
+        }
+    }
+
+    /**
+     * @return the log of the channel, or null if the topic log is off or the log could not be opened
+     */
+    private TopicLog topicLog(String channel) {
+        if (log == null) {
+            return null;
+        }
+        try {
+            return log.topic(channel);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * The subscriptions of one connection. Guarded by a lock rather than a monitor, since subscribing
+     * may redeliver and block on the connection, which must not pin a virtual thread.
+     */
+    private static final class SubscriptionIndex {
+        final ReentrantLock lock = new ReentrantLock();
+        // subscriptionId -> channel
+        final Map<String, String> channels = new HashMap<>();
+    }
 }
@@ -0,0 +1,218 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A set of wildcard destinations, matched against concrete destinations.
+ * Destinations are hierarchical, their segments are separated by '/', as in /worldcup/germany_japan.
+ * In a pattern the segment * matches exactly one segment and ** matches any number of segments,
+ * none included, so /worldcup/** matches /worldcup, /worldcup/germany_japan and everything below them.
+ *
+ * The patterns are kept in a trie of their segments, so matching a destination walks the trie once,
+ * O(depth), however many patterns there are. The patterns matching each destination are cached until
+ * the set of patterns changes, which is rare next to publishing, so a publish usually costs one lookup.
+ * Matching with no patterns at all costs nothing.
+ */
+public class DestinationTrie {
+
+    private static final String[] NONE = new String[0];
+    private static final int CACHE_LIMIT = 65_536;
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node any;
+        Node anyDepth;
+        /** the patterns that end at this node, more than one only if they differ in runs of ** */
+        final Set<String> patterns = new HashSet<>(2);
+
+        boolean isEmpty() {
+            return patterns.isEmpty() && any == null && anyDepth == null && children.isEmpty();
+        }
+    }
+
+    private static final class Resolved {
+        final long version;
+        final String[] patterns;
+
+        Resolved(long version, String[] patterns) {
+            this.version = version;
+            this.patterns = patterns;
+        }
+    }
+
+    // guarded by this
+    private final Node root = new Node();
+    private volatile int size;
+    // bumped whenever a pattern is added or removed, cached resolutions of an older version are stale
+    private volatile long version;
+    private final ConcurrentHashMap<String, Resolved> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if the destination has a * or ** segment
+     */
+    public static boolean isPattern(String destination) {
+        for (String segment : segments(destination)) {
+            if (segment.equals("*") || segment.equals("**")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the pattern was already present
+     */
+    public synchronized boolean add(String pattern) {
+        Node node = root;
+        for (String segment : segments(pattern)) {
+            node = child(node, segment, true);
+        }
+        if (!node.patterns.add(pattern)) {
+            return false;
+        }
+        size++;
+        version++;
+        return true;
+    }
+
+    /**
+     * @return false if the pattern was not present
+     */
+    public synchronized boolean remove(String pattern) {
+        String[] segments = segments(pattern);
+        Node[] path = new Node[segments.length + 1];
+        path[0] = root;
+        for (int i = 0; i < segments.length; i++) {
+            path[i + 1] = child(path[i], segments[i], false);
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+        if (!path[segments.length].patterns.remove(pattern)) {
+            return false;
+        }
+        for (int i = segments.length; i > 0 && path[i].isEmpty(); i--) {
+            unlink(path[i - 1], segments[i - 1]);
+        }
+        size--;
+        version++;
+        return true;
+    }
+
+    /**
+     * Add or remove the pattern as present says, asking it while no other update runs,
+     * so that concurrent updates of the same pattern settle on its latest state
+     */
+    public synchronized void update(String pattern, BooleanSupplier present) {
+        if (present.getAsBoolean()) {
+            add(pattern);
+        } else {
+            remove(pattern);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the patterns matching the concrete destination, not to be modified
+     */
+    public String[] match(String destination) {
+        if (size == 0) {
+            return NONE;
+        }
+        long current = version;
+        Resolved resolved = cache.get(destination);
+        if (resolved != null && resolved.version == current) {
+            return resolved.patterns;
+        }
+        String[] patterns;
+        synchronized (this) {
+            current = version;
+            Set<String> matched = new LinkedHashSet<>();
+            collect(root, segments(destination), 0, matched);
+            patterns = matched.isEmpty() ? NONE : matched.toArray(NONE);
+        }
+        if (cache.size() >= CACHE_LIMIT) {
+            cache.clear();
+        }
+        cache.put(destination, new Resolved(current, patterns));
+        return patterns;
+    }
+
+    public boolean matches(String destination) {
+        return match(destination).length > 0;
+    }
+
+    private static void collect(Node node, String[] segments, int from, Set<String> matched) {
+        if (node.anyDepth != null) {
+            for (int i = from; i <= segments.length; i++) {
+                collect(node.anyDepth, segments, i, matched);
+            }
+        }
+        if (from == segments.length) {
+            matched.addAll(node.patterns);
+            return;
+        }
+        Node child = node.children.get(segments[from]);
+        if (child != null) {
+            collect(child, segments, from + 1, matched);
+        }
+        if (node.any != null) {
+            collect(node.any, segments, from + 1, matched);
+        }
+    }
+
+    private static Node child(Node node, String segment, boolean create) {
+        switch (segment) {
+            case "*":
+                if (node.any == null && create) {
+                    node.any = new Node();
+                }
+                return node.any;
+            case "**":
+                if (node.anyDepth == null && create) {
+                    node.anyDepth = new Node();
+                }
+                return node.anyDepth;
+            default:
+                return create ? node.children.computeIfAbsent(segment, s -> new Node()) : node.children.get(segment);
+        }
+    }
+
+    private static void unlink(Node parent, String segment) {
+        switch (segment) {
+            case "*":
+                parent.any = null;
+                break;
+            case "**":
+                parent.anyDepth = null;
+                break;
+            default:
+                parent.children.remove(segment);
+        }
+    }
+
+    /**
+     * Splits the destination, collapsing runs of ** into one since they match the same,
+     * which keeps a pattern like /a/**&#47;**&#47;** from multiplying the work of matching
+     */
+    private static String[] segments(String destination) {
+        String[] segments = destination.split("/", -1);
+        int n = 0;
+        for (String segment : segments) {
+            if (!(segment.equals("**") && n > 0 && segments[n - 1].equals("**"))) {
+                segments[n++] = segment;
+            }
+        }
+        return n == segments.length ? segments : Arrays.copyOf(segments, n);
+    }
+}
@@ -0,0 +1,39 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates message-id values that are unique across all publishing threads
+ * and across server restarts.
+ * Every id is made of the epoch of this generator (its creation time, made later than the epoch
+ * of any generator created before it) and a sequence number.
+ * Sequence numbers are handed to each thread in blocks, so publishers only touch the
+ * shared counter once per block instead of once per message.
+ */
+public class MessageIdGenerator {
+
+    private static final int BLOCK_SIZE = 1 << 10;
+    // the last epoch handed out, so that generators created within the same millisecond still differ
+    private static final AtomicLong lastEpoch = new AtomicLong();
+
+    private final String epoch;
+    private final AtomicLong nextBlock = new AtomicLong();
+    private final ThreadLocal<long[]> range = ThreadLocal.withInitial(() -> new long[2]); // [next, end)
+
+    public MessageIdGenerator() {
+        this(lastEpoch.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now)));
+    }
+
+    public MessageIdGenerator(long epoch) {
+        this.epoch = Long.toString(epoch, 36) + "-";
+    }
+
+    public String next() {
+        long[] ids = range.get();
+        if (ids[0] == ids[1]) {
+            ids[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+            ids[1] = ids[0] + BLOCK_SIZE;
+        }
+        return epoch + ids[0]++;
+    }
+}
@@ -0,0 +1,431 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A condition on the fields of a message body, given by a subscriber in the selector header of SUBSCRIBE.
+ * The fields are the "key:value" lines at the start of the body. A line "key:" with no value starts a
+ * section, and the lines under it are named "section.key"; the "description:" section ends the fields.
+ * For a game report, user, event name and time are fields, and so is "team a updates.goals".
+ *
+ * The grammar is a small part of the JMS selector language:
+ * <pre>
+ *   expr       := and ( OR and )*
+ *   and        := not ( AND not )*
+ *   not        := NOT not | '(' expr ')' | comparison
+ *   comparison := field op literal | field [NOT] IN '(' literal ( ',' literal )* ')'
+ *   op         := = | &lt;&gt; | != | &lt; | &lt;= | &gt; | &gt;=
+ * </pre>
+ * A field is a word or a double quoted name, which may contain spaces; a literal is a single quoted
+ * string or a number. Both sides are compared as numbers when both are numbers, as text otherwise.
+ * A comparison with a field the message does not have is false.
+ * Example: <code>"event name" = 'goal' AND user IN ('bob', 'alice')</code>
+ *
+ * A selector is compiled once into a predicate. Equal selector texts compile to the same instance,
+ * so subscribers sharing a selector are evaluated once per message. A selector is evaluated on the
+ * publisher's thread, so its length (stomp.selector.maxLength), its nesting of NOT and parentheses
+ * (stomp.selector.maxDepth) and its number of comparisons (stomp.selector.maxTerms) are limited.
+ */
+public final class MessageSelector {
+
+    private static final int CACHE_LIMIT = 4096;
+    private static final int MAX_LENGTH = Integer.getInteger("stomp.selector.maxLength", 4096);
+    private static final int MAX_DEPTH = Integer.getInteger("stomp.selector.maxDepth", 32);
+    private static final int MAX_TERMS = Integer.getInteger("stomp.selector.maxTerms", 256);
+    private static final ConcurrentHashMap<String, MessageSelector> CACHE = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    /** unique per compiled selector, 0 stands for no selector */
+    final int id;
+    private final String text;
+    private final Predicate<Map<String, String>> predicate;
+
+    private MessageSelector(String text, Predicate<Map<String, String>> predicate) {
+        this.id = NEXT_ID.getAndIncrement();
+        this.text = text;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @return the compiled selector
+     * @throws IllegalArgumentException if the text is not a valid selector, with the reason as its message
+     */
+    public static MessageSelector compile(String text) {
+        MessageSelector selector = CACHE.get(text);
+        if (selector == null) {
+            selector = new MessageSelector(text, new Parser(text).parse());
+            if (CACHE.size() < CACHE_LIMIT) {
+                MessageSelector raced = CACHE.putIfAbsent(text, selector);
+                if (raced != null) {
+                    selector = raced;
+                }
+            }
+        }
+        return selector;
+    }
+
+    public boolean matches(Map<String, String> fields) {
+        return predicate.test(fields);
+    }
+
+    /**
+     * @return the fields of a message body
+     */
+    public static Map<String, String> fields(String body) {
+        Map<String, String> fields = new HashMap<>();
+        String section = null;
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            int colon = body.indexOf(':', start);
+            if (colon >= 0 && colon < end) {
+                String key = body.substring(start, colon).trim();
+                String value = body.substring(colon + 1, end).trim();
+                if (value.isEmpty()) {
+                    if (key.equals("description")) {
+                        break;
+                    }
+                    section = key;
+                } else {
+                    fields.put(section == null ? key : section + "." + key, value);
+                }
+            }
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    public static Map<String, String> fields(byte[] body) {
+        return fields(new String(body, StandardCharsets.UTF_8));
+    }
+
+    public static Map<String, String> fields(ByteBuffer body) {
+        return fields(StandardCharsets.UTF_8.decode(body.duplicate()).toString());
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static Double number(String text) {
+        try {
+            return Double.valueOf(text);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static int compare(String field, String literal, Double literalNumber) {
+        if (literalNumber != null) {
+            Double fieldNumber = number(field);
+            if (fieldNumber != null) {
+                return Double.compare(fieldNumber, literalNumber);
+            }
+        }
+        return field.compareTo(literal);
+    }
+
+    /**
+     * A recursive descent parser that builds the predicate while it reads the tokens
+     */
+    private static final class Parser {
+        private static final String END = "";
+
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        // whether each token was quoted, so a quoted "AND" is a field and not the keyword
+        private final List<Character> quotes = new ArrayList<>();
+        private int next;
+        private int depth;
+        private int terms;
+
+        Parser(String text) {
+            this.text = text;
+            if (text.length() > MAX_LENGTH) {
+                throw new IllegalArgumentException("the selector is longer than " + MAX_LENGTH + " characters");
+            }
+            tokenize();
+        }
+
+        Predicate<Map<String, String>> parse() {
+            if (tokens.isEmpty()) {
+                throw error("the selector is empty");
+            }
+            Predicate<Map<String, String>> predicate = or();
+            if (next < tokens.size()) {
+                throw error("unexpected " + tokens.get(next));
+            }
+            return predicate;
+        }
+
+        /**
+         * The terms of an OR are tested in a loop rather than chained, so a long selector
+         * does not evaluate as deeply nested calls
+         */
+        private Predicate<Map<String, String>> or() {
+            List<Predicate<Map<String, String>>> terms = new ArrayList<>();
+            do {
+                terms.add(and());
+            } while (keyword("OR"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            return fields -> {
+                for (Predicate<Map<String, String>> term : terms) {
+                    if (term.test(fields)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private Predicate<Map<String, String>> and() {
+            List<Predicate<Map<String, String>>> terms = new ArrayList<>();
+            do {
+                terms.add(not());
+            } while (keyword("AND"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            return fields -> {
+                for (Predicate<Map<String, String>> term : terms) {
+                    if (!term.test(fields)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        private Predicate<Map<String, String>> not() {
+            if (keyword("NOT")) {
+                enter();
+                Predicate<Map<String, String>> negated = not().negate();
+                depth--;
+                return negated;
+            }
+            if (symbol("(")) {
+                enter();
+                Predicate<Map<String, String>> inner = or();
+                expect(")");
+                depth--;
+                return inner;
+            }
+            return comparison();
+        }
+
+        private void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw error("NOT and parentheses are nested deeper than " + MAX_DEPTH);
+            }
+        }
+
+        private Predicate<Map<String, String>> comparison() {
+            if (++terms > MAX_TERMS) {
+                throw error("more than " + MAX_TERMS + " comparisons");
+            }
+            String field = field();
+            boolean negated = keyword("NOT");
+            if (keyword("IN")) {
+                expect("(");
+                List<String> values = new ArrayList<>();
+                List<Double> numbers = new ArrayList<>();
+                do {
+                    String value = literal();
+                    values.add(value);
+                    numbers.add(number(value));
+                } while (symbol(","));
+                expect(")");
+                Predicate<Map<String, String>> in = fields -> {
+                    String value = fields.get(field);
+                    if (value == null) {
+                        return false;
+                    }
+                    for (int i = 0; i < values.size(); i++) {
+                        if (compare(value, values.get(i), numbers.get(i)) == 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+                return negated ? present(field).and(in.negate()) : in;
+            }
+            if (negated) {
+                throw error("expected IN after NOT");
+            }
+
+            String op = operator();
+            String literal = literal();
+            Double number = number(literal);
+            IntPredicate test;
+            switch (op) {
+                case "=":
+                    test = c -> c == 0;
+                    break;
+                case "<>":
+                case "!=":
+                    test = c -> c != 0;
+                    break;
+                case "<":
+                    test = c -> c < 0;
+                    break;
+                case "<=":
+                    test = c -> c <= 0;
+                    break;
+                case ">":
+                    test = c -> c > 0;
+                    break;
+                default:
+                    test = c -> c >= 0;
+            }
+            return fields -> {
+                String value = fields.get(field);
+                return value != null && test.test(compare(value, literal, number));
+            };
+        }
+
+        private static Predicate<Map<String, String>> present(String field) {
+            return fields -> fields.containsKey(field);
+        }
+
+        private String field() {
+            String token = peek();
+            char quote = next < quotes.size() ? quotes.get(next) : 0;
+            if (quote == '\'' || token == END || (quote == 0 && !Character.isLetter(token.charAt(0)) && token.charAt(0) != '_')) {
+                throw error("expected a field name" + found());
+            }
+            next++;
+            return token;
+        }
+
+        private String literal() {
+            String token = peek();
+            char quote = next < quotes.size() ? quotes.get(next) : 0;
+            if (quote != '\'' && (quote != 0 || number(token) == null)) {
+                throw error("expected a quoted string or a number" + found());
+            }
+            next++;
+            return token;
+        }
+
+        private String operator() {
+            String token = peek();
+            if (quotes.size() > next && quotes.get(next) == 0) {
+                switch (token) {
+                    case "=": case "<>": case "!=": case "<": case "<=": case ">": case ">=":
+                        next++;
+                        return token;
+                    default:
+                }
+            }
+            throw error("expected a comparison operator or IN" + found());
+        }
+
+        private boolean keyword(String keyword) {
+            if (next < tokens.size() && quotes.get(next) == 0 && tokens.get(next).equalsIgnoreCase(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean symbol(String symbol) {
+            if (next < tokens.size() && quotes.get(next) == 0 && tokens.get(next).equals(symbol)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String symbol) {
+            if (!symbol(symbol)) {
+                throw error("expected " + symbol + found());
+            }
+        }
+
+        private String peek() {
+            return next < tokens.size() ? tokens.get(next) : END;
+        }
+
+        private String found() {
+            return next < tokens.size() ? " at " + tokens.get(next) : " at the end";
+        }
+
+        private IllegalArgumentException error(String reason) {
+            return new IllegalArgumentException(reason + " in selector " + text);
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder quoted = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i >= text.length()) {
+                            throw error("unterminated " + c);
+                        }
+                        char q = text.charAt(i++);
+                        if (q == c) {
+                            if (i < text.length() && text.charAt(i) == c) {
+                                quoted.append(c); // a doubled quote stands for itself
+                                i++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            quoted.append(q);
+                        }
+                    }
+                    add(quoted.toString(), c);
+                } else if (c == '(' || c == ')' || c == ',' || c == '=') {
+                    add(String.valueOf(c), (char) 0);
+                    i++;
+                } else if (c == '<' || c == '>' || c == '!') {
+                    int end = i + 1;
+                    if (end < text.length() && (text.charAt(end) == '=' || (c == '<' && text.charAt(end) == '>'))) {
+                        end++;
+                    }
+                    String op = text.substring(i, end);
+                    if (op.equals("!")) {
+                        throw error("unexpected !");
+                    }
+                    add(op, (char) 0);
+                    i = end;
+                } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.') {
+                    int end = i;
+                    while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end))
+                            || "_-.".indexOf(text.charAt(end)) >= 0)) {
+                        end++;
+                    }
+                    add(text.substring(i, end), (char) 0);
+                    i = end;
+                } else {
+                    throw error("unexpected " + c);
+                }
+            }
+        }
+
+        private void add(String token, char quote) {
+            tokens.add(token);
+            quotes.add(quote);
+        }
+    }
+}
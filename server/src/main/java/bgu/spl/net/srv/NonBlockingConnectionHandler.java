@@ -1,5 +1,6 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.BulkMessageDecoder;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 
@@ -7,29 +8,120 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; 
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    // gathering-write arrays, leased only while a connection has frames to write
+    private static final ConcurrentLinkedQueue<ByteBuffer[]> BATCH_POOL = new ConcurrentLinkedQueue<>();
+    private static final LongAdder BATCHES_HELD = new LongAdder();
+    private static final int MAX_GATHER = Integer.getInteger("stomp.write.maxGather", 64);
+    private static final int PACK_THRESHOLD = Integer.getInteger("stomp.write.packThreshold", 1 << 10);
+    private static final Counter WRITE_CALLS = Metrics.counter(
+            "stomp_write_calls_total", "Gathering write calls made by the reactor");
+    private static final Counter FRAMES_WRITTEN = Metrics.counter(
+            "stomp_frames_written_total", "Frames handed to the socket by the reactor");
+    private static final Counter BYTES_READ = Metrics.counter("stomp_bytes_read_total", "Bytes read from clients");
+    private static final Counter BYTES_WRITTEN = Metrics.counter("stomp_bytes_written_total", "Bytes written to clients");
+    private static final Counter HEARTBEATS_SENT = Metrics.counter(
+            "stomp_heartbeats_sent_total", "Heart-beat EOLs sent to clients that were not written to for their interval");
+    private static final Counter HEARTBEAT_TIMEOUTS = Metrics.counter(
+            "stomp_heartbeat_timeouts_total", "Connections closed because the client stopped heart-beating");
+    private static final ByteBuffer EOL = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+    // under the pause policy, reading stops while this many read buffers wait for the worker, so that a
+    // pause takes effect within them rather than after everything the loop read ahead
+    private static final int MAX_PENDING_READS = OutboundQueue.POLICY == OutboundQueue.Policy.PAUSE
+            ? Integer.getInteger("stomp.reactor.maxPendingReads", 8) : Integer.MAX_VALUE;
+    // the connection whose frames the current worker is processing, the publisher of whatever it sends
+    private static final ThreadLocal<OutboundQueue.Publisher> PUBLISHER = new ThreadLocal<>();
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final OutboundQueue writeQueue = new OutboundQueue();
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop loop;
+    private final ActorMailbox mailbox;
+    private Consumer<ByteBuffer> bulkReader;
+
+    // the gathering write in progress, only touched by the selector loop, null while there is none
+    private ByteBuffer[] batch;
+    private final List<ByteBuffer> packs = new ArrayList<>();
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private ByteBuffer[] carried;
+    private volatile boolean closeAfterFlush = false;
+    // how many consumer queues this connection's messages filled, plus one while too many reads are
+    // pending, nothing is read from it while any
+    private final AtomicInteger readPauses = new AtomicInteger();
+    private final AtomicInteger pendingReads = new AtomicInteger();
+    private final OutboundQueue.Publisher reads = new OutboundQueue.Publisher() {
+        @Override
+        public void pause() {
+            if (readPauses.getAndIncrement() == 0) {
+                loop.updateInterestedOps(chan, ops -> readOp() | (ops & SelectionKey.OP_WRITE));
+            }
+        }
+
+        @Override
+        public void resume() {
+            if (readPauses.decrementAndGet() == 0) {
+                loop.updateInterestedOps(chan, ops -> readOp() | (ops & SelectionKey.OP_WRITE));
+            }
+        }
+    };
+
+    // heart-beating, only touched by the selector loop
+    private long heartbeatSendNanos;
+    private long heartbeatIdleNanos;
+    private long lastReadNanos;
+    private long lastWriteNanos;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop loop,
+            Executor workers) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.mailbox = new ActorMailbox(workers);
+    }
+
+    /**
+     * @return the mailbox that runs this connection's tasks one at a time, in order
+     */
+    public ActorMailbox mailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Hands every read buffer to the given decoder as a whole instead of feeding
+     * {@link MessageEncoderDecoder#decodeNextByte} one byte at a time.
+     * Each decoded message is passed to the sink while the read buffer is still leased.
+     */
+    public <M> void useBulkDecoder(BulkMessageDecoder<M> decoder, Consumer<M> sink) {
+        bulkReader = buf -> {
+            M nextMessage;
+            while (!protocol.shouldTerminate() && (nextMessage = decoder.decodeNext(buf)) != null) {
+                sink.accept(nextMessage);
+            }
+        };
     }
 
     public Runnable continueRead() {
@@ -37,27 +129,44 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            int read = chan.read(buf);
+            success = read != -1;
+            if (success) {
+                BYTES_READ.add(read);
+                lastReadNanos = System.nanoTime();
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
         if (success) {
             buf.flip();
+            if (pendingReads.incrementAndGet() == MAX_PENDING_READS) {
+                reads.pause();
+            }
             return () -> {
+                PUBLISHER.set(reads);
                 try {
+                    if (bulkReader != null) {
+                        bulkReader.accept(buf);
+                        return;
+                    }
                     while (buf.hasRemaining()) {
                         T nextMessage = encdec.decodeNextByte(buf.get());
                         if (nextMessage != null) {
                             T response = protocol.process(nextMessage);
                             if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                                writeQueue.add(new ByteBuffer[] { ByteBuffer.wrap(encdec.encode(response)) });
+                                updateInterest(SelectionKey.OP_WRITE);
                             }
                         }
                     }
                 } finally {
+                    PUBLISHER.remove();
                     releaseBuffer(buf);
+                    if (pendingReads.getAndDecrement() == MAX_PENDING_READS) {
+                        reads.resume();
+                    }
                 }
             };
         } else {
@@ -68,40 +177,159 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     }
 
+    /**
+     * Called by the selector loop only. The protocol is told through the connection's mailbox,
+     * so it runs after the frames already queued and never at the same time as one of them,
+     * and the logout it does stays off the selector loop.
+     */
     public void close() {
+        writeQueue.close();
+        if (!chan.isOpen()) {
+            return;
+        }
+        releaseBatch();
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        mailbox.submit(protocol::connectionClosed);
     }
 
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * Writes queued frames with gathering writes of up to {@link #MAX_GATHER} buffers per call.
+     * Small frame parts are copied into pooled direct buffers on the way, so a burst of small
+     * frames becomes a few large buffers. A batch that was only partly written is finished
+     * on the next call before any new frame is taken from the queue.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
+        try {
+            while (batchStart < batchEnd || fillBatch()) {
+                BYTES_WRITTEN.add(chan.write(batch, batchStart, batchEnd - batchStart));
+                lastWriteNanos = System.nanoTime();
+                WRITE_CALLS.increment();
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
                     return;
-                } else {
-                    writeQueue.remove();
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+                releasePacks();
             }
+            releaseBatch();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            releasePacks();
+            close();
+            return;
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        if (carried == null && writeQueue.isEmpty()) {
+            if (protocol.shouldTerminate() || closeAfterFlush) close();
+            else updateInterest(0);
         }
     }
 
+    /**
+     * Moves frames from the write queue into the batch until it is full or the queue is empty.
+     * Publishers may drop queued frames concurrently, so a frame is only ever looked at after
+     * it was taken; one that does not fit is carried over to the next batch.
+     * @return true if at least one frame was added
+     */
+    private boolean fillBatch() {
+        if (batch == null) {
+            batch = leaseBatch();
+        }
+        batchStart = 0;
+        batchEnd = 0;
+        ByteBuffer pack = null;
+        ByteBuffer[] frame;
+        while ((frame = carried != null ? carried : writeQueue.poll()) != null) {
+            if (batchEnd > 0 && batchEnd + frame.length + 1 > MAX_GATHER) {
+                carried = frame;
+                break;
+            }
+            carried = null;
+            if (batchEnd + frame.length > batch.length) {
+                batch = Arrays.copyOf(batch, batchEnd + frame.length); // a single frame with more parts than MAX_GATHER
+            }
+            FRAMES_WRITTEN.increment();
+            for (ByteBuffer part : frame) {
+                if (part.remaining() > PACK_THRESHOLD) {
+                    batch[batchEnd++] = part;
+                    pack = null;
+                    continue;
+                }
+                if (pack == null || pack.remaining() < part.remaining()) {
+                    pack = leaseBuffer();
+                    packs.add(pack);
+                    batch[batchEnd++] = pack;
+                }
+                pack.put(part);
+            }
+        }
+        for (ByteBuffer leased : packs) {
+            leased.flip();
+        }
+        return batchEnd > 0;
+    }
+
+    private static ByteBuffer[] leaseBatch() {
+        ByteBuffer[] leased = BATCH_POOL.poll();
+        BATCHES_HELD.increment();
+        return leased != null ? leased : new ByteBuffer[MAX_GATHER];
+    }
+
+    /**
+     * Gives the batch back once everything in it was written, or when the connection closes.
+     * A batch that grew for a frame with many parts is dropped rather than pooled.
+     */
+    private void releaseBatch() {
+        if (batch == null) {
+            return;
+        }
+        Arrays.fill(batch, 0, batchEnd, null);
+        if (batch.length == MAX_GATHER) {
+            BATCH_POOL.add(batch);
+        }
+        batch = null;
+        batchStart = 0;
+        batchEnd = 0;
+        BATCHES_HELD.decrement();
+    }
+
+    private void releasePacks() {
+        for (ByteBuffer leased : packs) {
+            releaseBuffer(leased);
+        }
+        packs.clear();
+    }
+
+    /**
+     * @return the number of gathering write calls made by all handlers so far
+     */
+    public static long writeCalls() {
+        return WRITE_CALLS.sum();
+    }
+
+    /**
+     * @return the number of gathering-write arrays connections hold right now, none while idle
+     */
+    public static long batchesHeld() {
+        return BATCHES_HELD.sum();
+    }
+
+    /**
+     * @return the number of frames handed to the socket by all handlers so far
+     */
+    public static long framesWritten() {
+        return FRAMES_WRITTEN.sum();
+    }
+
     private static ByteBuffer leaseBuffer() {
         ByteBuffer buff = BUFFER_POOL.poll();
         if (buff == null) {
@@ -120,8 +348,100 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     public void send(T msg) {
         //IMPLEMENT IF NEEDED
         if (msg != null) {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            writeQueue.add(new ByteBuffer[] { ByteBuffer.wrap(encdec.encode(msg)) });
+            updateInterest(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @param writeOp OP_WRITE if frames are waiting to be written, 0 otherwise
+     */
+    private void updateInterest(int writeOp) {
+        loop.updateInterestedOps(chan, ops -> readOp() | writeOp);
+    }
+
+    private int readOp() {
+        return readPauses.get() > 0 ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Under the pause policy, a message published by a connection of this reactor to a consumer
+     * whose queue is full stops the reading of the publishing connection instead of blocking the worker.
+     */
+    @Override
+    public boolean sendEncoded(ByteBuffer... parts) {
+        if (!writeQueue.offer(parts, PUBLISHER.get())) {
+            return false;
+        }
+        updateInterest(SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    @Override
+    public void sendBacklog(Iterator<ByteBuffer[]> backlog) {
+        writeQueue.addBacklog(backlog);
+        updateInterest(SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public void heartbeat(long sendMillis, long idleMillis) {
+        if (sendMillis <= 0 && idleMillis <= 0) {
+            return;
         }
+        loop.runOnLoop(() -> {
+            heartbeatSendNanos = TimeUnit.MILLISECONDS.toNanos(sendMillis);
+            heartbeatIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            lastReadNanos = System.nanoTime();
+            checkHeartbeat();
+        });
+    }
+
+    /**
+     * Closes the connection if the client was silent for too long, sends an EOL if this side was,
+     * and checks again when the earlier of the two can next happen. Runs on the selector loop,
+     * a closed connection's check simply stops rescheduling itself.
+     */
+    private void checkHeartbeat() {
+        if (!chan.isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        if (heartbeatIdleNanos > 0) {
+            if (readPauses.get() > 0) {
+                lastReadNanos = now; // the client's heart-beats wait unread while reading is paused
+            }
+            if (now - lastReadNanos >= heartbeatIdleNanos) {
+                HEARTBEAT_TIMEOUTS.increment();
+                close();
+                loop.connectionClosed();
+                return;
+            }
+            next = lastReadNanos + heartbeatIdleNanos - now;
+        }
+        if (heartbeatSendNanos > 0) {
+            if (now - lastWriteNanos >= heartbeatSendNanos) {
+                // a connection with frames still waiting is not idle, its writes will reach the client first
+                if (carried == null && batchStart == batchEnd && writeQueue.isEmpty()) {
+                    writeQueue.add(new ByteBuffer[] { EOL.duplicate() });
+                    updateInterest(SelectionKey.OP_WRITE);
+                    HEARTBEATS_SENT.increment();
+                }
+                lastWriteNanos = now;
+            }
+            next = Math.min(next, lastWriteNanos + heartbeatSendNanos - now);
+        }
+        loop.schedule(TimeUnit.NANOSECONDS.toMillis(next), this::checkHeartbeat);
+    }
+
+    /**
+     * A batch already handed to the socket is finished first, so the last message
+     * never lands in the middle of a partly written frame.
+     */
+    @Override
+    public void abort(T lastMessage) {
+        closeAfterFlush = true;
+        writeQueue.clear();
+        send(lastMessage);
     }
 }
@@ -0,0 +1,286 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bgu.spl.net.srv.metrics.Counter;
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * The frames waiting to be written to one connection, bounded in frames and in bytes.
+ * Frames offered by publishers are subject to the limits, and the slow-consumer policy decides
+ * what happens when a frame does not fit. Frames added by the connection's own protocol
+ * (receipts, errors) bypass the limits, their rate is bounded by the client's own requests.
+ * A backlog, such as a replay from the topic log, is streamed ahead of the queued frames and
+ * outside of the limits: its frames are only produced when the writer takes them.
+ * Any thread may add frames, only the connection's writer takes them.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a frame that does not fit in a connection's outbound limits
+     */
+    public enum Policy {
+        /** drop the oldest queued frames until the new one fits */
+        DROP_OLDEST,
+        /** refuse the frame, the caller disconnects the consumer with an ERROR frame */
+        DISCONNECT,
+        /**
+         * hold the publisher back until the consumer catches up: the tpc and vthread servers block the
+         * publishing thread, the reactor servers stop reading from the publishing connection
+         */
+        PAUSE;
+
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public static final long MAX_BYTES = Long.getLong("stomp.outbound.maxBytes", 8L << 20);
+    public static final int MAX_FRAMES = Integer.getInteger("stomp.outbound.maxFrames", 10_000);
+    /**
+     * A publisher the pause policy stops instead of blocking its thread, such as a reactor connection
+     * that stops reading. A frame that does not fit is queued over the limits, the publisher is paused,
+     * and it is resumed once the queue drained to half its limits or closed.
+     */
+    public interface Publisher {
+        void pause();
+
+        void resume();
+    }
+
+    public static final Policy POLICY = Policy.parse(System.getProperty("stomp.outbound.policy", "disconnect"));
+
+    private static final Counter DROPPED = Metrics.counter(
+            "stomp_outbound_dropped_frames_total", "Queued frames dropped by the drop-oldest policy");
+    private static final Counter DISCONNECTED = Metrics.counter(
+            "stomp_outbound_disconnects_total", "Frames refused by the disconnect policy");
+    private static final Counter PAUSED = Metrics.counter(
+            "stomp_outbound_pauses_total", "Publishers paused by the pause policy");
+
+    private final Queue<ByteBuffer[]> frames = new ConcurrentLinkedQueue<>();
+    private final Queue<Iterator<ByteBuffer[]>> backlogs = new ConcurrentLinkedQueue<>();
+    // updated through field updaters rather than atomic objects, there is one queue per connection
+    private static final AtomicIntegerFieldUpdater<OutboundQueue> FRAME_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(OutboundQueue.class, "frameCount");
+    private static final AtomicLongFieldUpdater<OutboundQueue> BYTE_COUNT =
+            AtomicLongFieldUpdater.newUpdater(OutboundQueue.class, "byteCount");
+    private volatile int frameCount;
+    private volatile long byteCount;
+    private final long maxBytes;
+    private final int maxFrames;
+    private final Policy policy;
+
+    // only the pause policy waits, the other policies do without the lock
+    private final ReentrantLock pauseLock;
+    private final Condition drained;
+    private volatile int pausedPublishers = 0;
+    private final Queue<Publisher> stopped = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    public OutboundQueue() {
+        this(MAX_BYTES, MAX_FRAMES, POLICY);
+    }
+
+    public OutboundQueue(long maxBytes, int maxFrames, Policy policy) {
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.policy = policy;
+        this.pauseLock = policy == Policy.PAUSE ? new ReentrantLock() : null;
+        this.drained = pauseLock == null ? null : pauseLock.newCondition();
+    }
+
+    /**
+     * Queues a frame regardless of the limits
+     */
+    public void add(ByteBuffer[] frame) {
+        frames.add(frame);
+        FRAME_COUNT.incrementAndGet(this);
+        BYTE_COUNT.addAndGet(this, sizeOf(frame));
+    }
+
+    /**
+     * Streams the frames of the backlog before any frame queued so far or later
+     */
+    public void addBacklog(Iterator<ByteBuffer[]> backlog) {
+        backlogs.add(backlog);
+    }
+
+    /**
+     * Queues a frame within the limits, applying the slow-consumer policy if it does not fit
+     * @return false if the frame was refused and the consumer should be disconnected
+     */
+    public boolean offer(ByteBuffer[] frame) {
+        return offer(frame, null);
+    }
+
+    /**
+     * @param publisher stopped rather than blocked by the pause policy, null to block the calling thread
+     * @return false if the frame was refused and the consumer should be disconnected
+     */
+    public boolean offer(ByteBuffer[] frame, Publisher publisher) {
+        long size = sizeOf(frame);
+        if (!fits(size)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    while (!fits(size) && pollQueued() != null) {
+                        DROPPED.increment();
+                    }
+                    break;
+                case PAUSE:
+                    PAUSED.increment();
+                    if (publisher != null) {
+                        publisher.pause();
+                        stopped.add(publisher);
+                        add(frame);
+                        resumeIfDrained(); // the writer may have drained the queue before the publisher was added
+                        return true;
+                    }
+                    if (!awaitRoom(size)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    DISCONNECTED.increment();
+                    return false;
+            }
+        }
+        add(frame);
+        return true;
+    }
+
+    public ByteBuffer[] poll() {
+        Iterator<ByteBuffer[]> backlog;
+        while ((backlog = backlogs.peek()) != null) {
+            if (backlog.hasNext()) {
+                return backlog.next();
+            }
+            backlogs.poll();
+        }
+        return pollQueued();
+    }
+
+    /**
+     * Takes the oldest queued frame, leaving the backlogs to the writer
+     */
+    private ByteBuffer[] pollQueued() {
+        ByteBuffer[] frame = frames.poll();
+        if (frame != null) {
+            FRAME_COUNT.decrementAndGet(this);
+            BYTE_COUNT.addAndGet(this, -sizeOf(frame));
+            if (pausedPublishers > 0) {
+                signalDrained();
+            }
+            if (!stopped.isEmpty()) {
+                resumeIfDrained();
+            }
+        }
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return backlogs.isEmpty() && frames.isEmpty();
+    }
+
+    /**
+     * Drops every queued frame
+     */
+    public void clear() {
+        backlogs.clear();
+        while (pollQueued() != null) {
+        }
+    }
+
+    /**
+     * Releases publishers paused on this queue, called when the connection closes
+     */
+    public void close() {
+        closed = true;
+        if (pauseLock != null) {
+            signalDrained();
+            resumeIfDrained();
+        }
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public long byteCount() {
+        return byteCount;
+    }
+
+    private boolean fits(long size) {
+        // a frame larger than the limits on its own still goes through once the queue is empty
+        return frameCount == 0 || (frameCount < maxFrames && byteCount + size <= maxBytes);
+    }
+
+    private boolean awaitRoom(long size) {
+        pauseLock.lock();
+        try {
+            pausedPublishers++;
+            while (!fits(size) && !closed) {
+                drained.await();
+            }
+            return !closed;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pausedPublishers--;
+            pauseLock.unlock();
+        }
+    }
+
+    private void resumeIfDrained() {
+        Publisher publisher;
+        while ((closed || (frameCount <= maxFrames / 2 && byteCount <= maxBytes / 2))
+                && (publisher = stopped.poll()) != null) {
+            publisher.resume();
+        }
+    }
+
+    private void signalDrained() {
+        pauseLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private static long sizeOf(ByteBuffer[] frame) {
+        long size = 0;
+        for (ByteBuffer part : frame) {
+            size += part.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * @return how many queued frames were dropped by the drop-oldest policy
+     */
+    public static long droppedFrames() {
+        return DROPPED.sum();
+    }
+
+    /**
+     * @return how many frames were refused by the disconnect policy
+     */
+    public static long disconnects() {
+        return DISCONNECTED.sum();
+    }
+
+    /**
+     * @return how many times a publisher was paused by the pause policy
+     */
+    public static long pauses() {
+        return PAUSED.sum();
+    }
+}
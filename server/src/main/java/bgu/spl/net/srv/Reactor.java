@@ -1,39 +1,66 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.BulkMessageDecoder;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
-import bgu.spl.net.api.StompMessagingProtocol; 
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.Frame;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    /**
+     * How accepted connections are spread over the IO loops of a multi-reactor
+     */
+    public enum Balancing {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory; 
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
-    private final ActorThreadPool pool;
-    private Selector selector;
+    private final ExecutorService workers;
+    private final int numLoops;
+    private final Balancing balancing;
+    private SelectorLoop acceptLoop;
+    private SelectorLoop[] ioLoops = new SelectorLoop[0];
+    private int nextLoop = 0;
     private final ConnectionsImpl<T> connections = new ConnectionsImpl<>(); 
     private int connectionIdCounter = 0; 
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 0, Balancing.ROUND_ROBIN, port, protocolFactory, readerFactory);
+    }
 
+    /**
+     * @param numLoops number of IO selector loops besides the accepting one,
+     *                 0 means the accepting loop does all the IO itself
+     * @param balancing how accepted connections are assigned to the IO loops
+     */
     @SuppressWarnings("unchecked")
     public Reactor(
             int numThreads,
+            int numLoops,
+            Balancing balancing,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
-        this.pool = new ActorThreadPool(numThreads);
+        this.workers = Executors.newFixedThreadPool(numThreads);
+        this.numLoops = numLoops;
+        this.balancing = balancing;
         this.port = port;
         this.protocolFactory = (Supplier<StompMessagingProtocol<T>>) (Object) protocolFactory;
         this.readerFactory = readerFactory;
@@ -41,45 +68,47 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-        selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; 
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+            acceptLoop = new SelectorLoop();
+            ioLoops = new SelectorLoop[numLoops];
+            for (int i = 0; i < numLoops; i++) {
+                ioLoops[i] = new SelectorLoop();
+                new Thread(ioLoops[i], "reactor-io-" + i).start();
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            serverSock.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT);
+            acceptLoop.onAccept(key -> handleAccept(serverSock));
             System.out.println("Server started");
 
-            while (!Thread.currentThread().isInterrupted()) {
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-                selector.selectedKeys().clear();
-            }
+            acceptLoop.run();
 
-        } catch (ClosedSelectorException ex) {
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            closeLoops();
         }
 
         System.out.println("server closed!!!");
-        pool.shutdown();
+        workers.shutdownNow();
     }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
+    private void handleAccept(ServerSocketChannel serverChan) {
+        SocketChannel clientChan;
+        try {
+            clientChan = serverChan.accept();
+            if (clientChan == null) {
+                return;
+            }
+            clientChan.configureBlocking(false);
+            // frames are already coalesced before they are written, Nagle would only hold them back
+            clientChan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        SelectorLoop loop = chooseLoop();
 
         StompMessagingProtocol<T> stompProtocol = protocolFactory.get();
         
@@ -95,62 +124,65 @@ public class Reactor<T> implements Server<T> {
             public boolean shouldTerminate() {
                 return stompProtocol.shouldTerminate();
             }
+            @Override
+            public void connectionClosed() {
+                stompProtocol.connectionClosed();
+            }
         };
 
+        MessageEncoderDecoder<T> encdec = readerFactory.get();
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
-                readerFactory.get(),
+                encdec,
                 adapter,
                 clientChan,
-                this);
+                loop,
+                workers);
+        if (encdec instanceof BulkMessageDecoder) {
+            handler.useBulkDecoder(bulkDecoder(encdec), stompProtocol::process);
+        }
 
         connections.connect(connectionIdCounter, handler);
         connectionIdCounter++;
 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        loop.register(clientChan, handler);
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (key == null) {
-            return; 
+    private SelectorLoop chooseLoop() {
+        if (ioLoops.length == 0) {
+            return acceptLoop;
         }
-
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                if (key.isValid()) {
-                    key.interestOps(ops);
+        if (balancing == Balancing.LEAST_LOADED) {
+            SelectorLoop least = ioLoops[0];
+            for (SelectorLoop loop : ioLoops) {
+                if (loop.connectionCount() < least.connectionCount()) {
+                    least = loop;
                 }
-            });
-            selector.wakeup();
-        }
-    }
-
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
             }
+            return least;
         }
+        SelectorLoop loop = ioLoops[nextLoop];
+        nextLoop = (nextLoop + 1) % ioLoops.length;
+        return loop;
+    }
 
-        if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
+    @SuppressWarnings("unchecked")
+    private static BulkMessageDecoder<Frame> bulkDecoder(MessageEncoderDecoder<?> encdec) {
+        return (BulkMessageDecoder<Frame>) encdec;
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        try {
+            if (acceptLoop != null) acceptLoop.close();
+            for (SelectorLoop loop : ioLoops) {
+                loop.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (selector != null) selector.close();
+        closeLoops();
     }
 }
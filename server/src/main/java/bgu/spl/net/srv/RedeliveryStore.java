@@ -0,0 +1,87 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The messages that were in flight on acknowledged subscriptions when their connection closed,
+ * kept for the same user to receive again when it subscribes to the same destination.
+ * The store holds the messages of at most stomp.ack.parkedSubscriptions (10000) subscriptions,
+ * forgetting the oldest first, each for stomp.ack.parkMillis (10 minutes), and at most a window
+ * of messages per user and destination.
+ */
+class RedeliveryStore {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("stomp.ack.parkedSubscriptions", 10_000);
+    private static final long PARK_MILLIS = Long.getLong("stomp.ack.parkMillis", 10 * 60 * 1000L);
+
+    private static final class Parked {
+        final long parkedAt;
+        final List<AckWindow.Message> messages;
+
+        Parked(long parkedAt, List<AckWindow.Message> messages) {
+            this.parkedAt = parkedAt;
+            this.messages = messages;
+        }
+    }
+
+    // guarded by this, in the order the entries were parked
+    private final LinkedHashMap<String, Parked> parked = new LinkedHashMap<>();
+    private long messageCount;
+
+    synchronized void park(String user, String destination, List<AckWindow.Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Parked> oldest = parked.values().iterator();
+        while (oldest.hasNext()) {
+            Parked entry = oldest.next();
+            if (now - entry.parkedAt <= PARK_MILLIS && parked.size() < MAX_ENTRIES) {
+                break;
+            }
+            messageCount -= entry.messages.size();
+            oldest.remove();
+        }
+
+        String key = key(user, destination);
+        Parked earlier = parked.remove(key);
+        List<AckWindow.Message> all = messages;
+        if (earlier != null) {
+            messageCount -= earlier.messages.size();
+            all = new ArrayList<>(earlier.messages);
+            all.addAll(messages);
+            if (all.size() > AckWindow.CAPACITY) {
+                all = new ArrayList<>(all.subList(all.size() - AckWindow.CAPACITY, all.size()));
+            }
+        }
+        parked.put(key, new Parked(now, all));
+        messageCount += all.size();
+    }
+
+    /**
+     * @return the messages parked for the user and destination, oldest first, which the store forgets
+     */
+    synchronized List<AckWindow.Message> take(String user, String destination) {
+        Parked entry = parked.remove(key(user, destination));
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        messageCount -= entry.messages.size();
+        if (System.currentTimeMillis() - entry.parkedAt > PARK_MILLIS) {
+            return Collections.emptyList();
+        }
+        return entry.messages;
+    }
+
+    synchronized long messageCount() {
+        return messageCount;
+    }
+
+    private static String key(String user, String destination) {
+        return user + '\n' + destination;
+    }
+}
@@ -0,0 +1,178 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+import bgu.spl.net.srv.metrics.Histogram;
+import bgu.spl.net.srv.metrics.Metrics;
+
+/**
+ * One selector and the thread that runs it.
+ * The loop reads and writes every connection registered with it; changes to a key from
+ * other threads are queued as tasks and run by the loop thread after it wakes up.
+ * A reactor runs a single loop that also accepts, or one accepting loop and several of these.
+ * The timers of the loop's connections live in one {@link TimingWheel}, the loop wakes up for its ticks.
+ */
+public class SelectorLoop implements Runnable, Closeable {
+
+    private static final Histogram LOOP_MICROS = Metrics.histogram(
+            "stomp_selector_loop_microseconds", "Time a selector loop spent on each wake-up, without waiting in select");
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final TimingWheel timers = new TimingWheel();
+    private volatile Thread selectorThread;
+    private Consumer<SelectionKey> acceptHandler;
+
+    public SelectorLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /*package*/ Selector selector() {
+        return selector;
+    }
+
+    /**
+     * @param acceptHandler called by the loop thread for every key that is ready to accept
+     */
+    /*package*/ void onAccept(Consumer<SelectionKey> acceptHandler) {
+        this.acceptHandler = acceptHandler;
+    }
+
+    /**
+     * @return the number of connections currently registered with this loop, used to balance loops
+     */
+    public int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Registers the channel for reading. May be called from any thread.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        connectionCount.incrementAndGet();
+        runOnLoop(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException ex) {
+                connectionCount.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * The new ops are computed from the current ones by the loop thread when it applies the change,
+     * so changes queued by several threads are applied to the latest ops.
+     * The key may be cancelled already: a paused publisher is resumed by the loop of its consumer,
+     * which may happen after the publisher closed.
+     */
+    /*package*/ void updateInterestedOps(SocketChannel chan, IntUnaryOperator ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) {
+            return;
+        }
+
+        if (Thread.currentThread() == selectorThread) {
+            if (key.isValid()) {
+                key.interestOps(ops.applyAsInt(key.interestOps()));
+            }
+        } else {
+            runOnLoop(() -> {
+                if (key.isValid()) {
+                    key.interestOps(ops.applyAsInt(key.interestOps()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after at least the given delay. May be called from any thread.
+     */
+    /*package*/ void schedule(long delayMillis, Runnable task) {
+        runOnLoop(() -> timers.schedule(delayMillis, task));
+    }
+
+    /*package*/ void runOnLoop(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                selector.select(timers.waitMillis());
+                long start = System.nanoTime();
+                runSelectionThreadTasks();
+                timers.advance();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        acceptHandler.accept(key);
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+                LOOP_MICROS.record((System.nanoTime() - start) / 1000);
+            }
+        } catch (ClosedSelectorException ex) {
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts out a connection that its handler closed outside of a read or write, on the loop thread
+     */
+    /*package*/ void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        NonBlockingConnectionHandler<?> handler = (NonBlockingConnectionHandler<?>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                handler.mailbox().submit(task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+
+        if (!key.isValid()) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
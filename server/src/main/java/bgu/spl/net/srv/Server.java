@@ -3,6 +3,8 @@ package bgu.spl.net.srv;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -34,6 +36,49 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     * This function returns a new instance of a thread per client pattern server
+     * where every client is served, and its queued messages are written, by virtual threads instead of platform threads
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads (before Java 21)
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        Executor virtualThreads = virtualThreadExecutor();
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                virtualThreads.execute(handler);
+            }
+
+            /**
+             * A slow peer then blocks a virtual thread of its own instead of a shared platform writer
+             */
+            @Override
+            protected Executor writers() {
+                return virtualThreads;
+            }
+        };
+    }
+
+    /**
+     * The project still compiles for Java 17, so the Java 21 factory is looked up at runtime
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", ex);
+        }
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -51,4 +96,26 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor server with one accepting selector
+     * and several selector loops that share the reading and writing of the connections
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of selector loops doing the IO of the accepted connections
+     * @param balancing How accepted connections are assigned to the selector loops
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new multi reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nloops,
+            Reactor.Balancing balancing,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nloops, balancing, port, protocolFactory, encoderDecoderFactory);
+    }
+
 }
@@ -0,0 +1,100 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: the timers of all the connections of one selector loop, in one structure.
+ * Time is cut into ticks of stomp.timers.tickMillis (100ms) and a timer lives in the slot of the tick it
+ * expires on, modulo the number of slots, so scheduling is O(1) and each tick only looks at its own slot.
+ * A timer further away than one turn of the wheel stays in its slot until a later turn reaches its tick.
+ * Timers fire up to a tick late, never early.
+ *
+ * Not thread safe, only the loop thread uses it; the loop selects with {@link #waitMillis()} as timeout
+ * and calls {@link #advance()} after every wake-up.
+ */
+class TimingWheel {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("stomp.timers.tickMillis", 100));
+    private static final int SLOTS = 512;
+
+    private static final class Timer {
+        final long deadline;
+        final Runnable task;
+        Timer next;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private final Timer[] slots = new Timer[SLOTS];
+    private final List<Timer> due = new ArrayList<>();
+    private final long origin = System.nanoTime();
+    // the last tick whose timers were run
+    private long tick;
+    private int size;
+
+    /**
+     * Run the task once, on the loop thread, after at least the given delay
+     */
+    void schedule(long delayMillis, Runnable task) {
+        long elapsed = System.nanoTime() - origin + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long deadline = Math.max((elapsed + TICK_NANOS - 1) / TICK_NANOS, tick + 1);
+        Timer timer = new Timer(deadline, task);
+        int slot = (int) (deadline & (SLOTS - 1));
+        timer.next = slots[slot];
+        slots[slot] = timer;
+        size++;
+    }
+
+    /**
+     * @return how long the loop may wait before the next tick, 0 to wait without a timeout
+     */
+    long waitMillis() {
+        if (size == 0) {
+            return 0;
+        }
+        long untilNextTick = (tick + 1) * TICK_NANOS - (System.nanoTime() - origin);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilNextTick));
+    }
+
+    /**
+     * Run the timers of every tick that passed since the last call
+     */
+    void advance() {
+        long now = (System.nanoTime() - origin) / TICK_NANOS;
+        if (size == 0) {
+            tick = now;
+            return;
+        }
+        // after a stall of more than a turn every slot is visited once, the deadlines tell what is due
+        long steps = Math.min(now - tick, SLOTS);
+        for (long i = 1; i <= steps; i++) {
+            int slot = (int) ((tick + i) & (SLOTS - 1));
+            Timer kept = null;
+            for (Timer timer = slots[slot], next; timer != null; timer = next) {
+                next = timer.next;
+                if (timer.deadline <= now) {
+                    due.add(timer);
+                } else {
+                    timer.next = kept;
+                    kept = timer;
+                }
+            }
+            slots[slot] = kept;
+        }
+        tick = now;
+        size -= due.size();
+        for (Timer timer : due) {
+            try {
+                timer.task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+        due.clear();
+    }
+}
@@ -0,0 +1,325 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The subscribers of every topic, spread over a fixed number of shards by the hash of the topic name.
+ * Each topic keeps its subscribers in an array that is replaced, never modified, so a fan-out reads
+ * one volatile field and iterates a plain array without locking or allocating.
+ * Changes to a shard are queued and applied by whichever caller holds the shard's lock, which applies
+ * every change queued so far and copies each touched topic's array once per batch, so a burst of
+ * subscriptions to one topic costs one copy per batch instead of one per subscription.
+ * Each shard also indexes its (topic, connection) pairs, so a membership check is a single lookup.
+ * The subscribers of a topic are kept grouped by their {@link MessageSelector}, plain subscribers first,
+ * so a fan-out evaluates each distinct selector once per message.
+ */
+class TopicRegistry {
+
+    private static final Subscriber[] NONE = new Subscriber[0];
+    private static final Comparator<Subscriber> BY_SELECTOR =
+            Comparator.comparingInt(subscriber -> subscriber.selector == null ? 0 : subscriber.selector.id);
+
+    /**
+     * One subscription of a connection to a topic, a connection has at most one per topic
+     */
+    static final class Subscriber {
+        final int connectionId;
+        final String subscriptionId;
+        /** null if the subscriber gets every message of the topic */
+        final MessageSelector selector;
+        /** null if the subscription does not ask for acknowledgements */
+        final AckWindow window;
+
+        Subscriber(int connectionId, String subscriptionId, MessageSelector selector, AckWindow window) {
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.selector = selector;
+            this.window = window;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int shift;
+
+    /**
+     * @param shards the number of shards, rounded up to a power of two
+     */
+    TopicRegistry(int shards) {
+        int count = Integer.highestOneBit(Math.max(1, shards - 1)) << 1;
+        this.shards = new Shard[shards <= 1 ? 1 : count];
+        this.shift = 32 - Integer.numberOfTrailingZeros(this.shards.length);
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * @return the subscribers of the topic, not to be modified
+     */
+    Subscriber[] subscribers(String topic) {
+        Topic t = shard(topic).topics.get(topic);
+        return t == null ? NONE : t.subscribers;
+    }
+
+    boolean hasSubscribers(String topic) {
+        return subscribers(topic).length > 0;
+    }
+
+    boolean isSubscribed(String topic, int connectionId) {
+        return shard(topic).members.containsKey(new Member(topic, connectionId));
+    }
+
+    /**
+     * Subscribe the connection to the topic, replacing its earlier subscription to the topic if it had one
+     * @param selector null to receive every message of the topic
+     * @param window null unless the subscription asks for acknowledgements
+     * @return the id of the replaced subscription, or null
+     */
+    String subscribe(String topic, int connectionId, String subscriptionId, MessageSelector selector, AckWindow window) {
+        Update update = new Update(topic, connectionId, subscriptionId, selector, window, true);
+        shard(topic).apply(update);
+        return update.result;
+    }
+
+    /**
+     * Remove the connection's subscription to the topic if its id is subscriptionId
+     */
+    void unsubscribe(String topic, int connectionId, String subscriptionId) {
+        shard(topic).apply(new Update(topic, connectionId, subscriptionId, null, null, false));
+    }
+
+    int topicCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.topics.size();
+        }
+        return count;
+    }
+
+    long subscriptionCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.members.size();
+        }
+        return count;
+    }
+
+    /**
+     * Picks the shard by the high bits of the scrambled hash, the maps inside a shard index by the low bits
+     */
+    private Shard shard(String topic) {
+        return shards.length == 1 ? shards[0] : shards[(topic.hashCode() * 0x9E3779B9) >>> shift];
+    }
+
+    private static final class Topic {
+        volatile Subscriber[] subscribers = NONE;
+    }
+
+    /**
+     * The changes a batch makes to one topic: subscribers dropped from the current array and subscribers added
+     */
+    private static final class TopicChanges {
+        final String name;
+        final Topic topic;
+        // the connections whose subscriber is dropped from the current array, sorted
+        int[] removed = new int[0];
+        LinkedHashMap<Integer, Subscriber> added;
+        TopicChanges next;
+
+        TopicChanges(String name, Topic topic) {
+            this.name = name;
+            this.topic = topic;
+        }
+
+        void add(Subscriber subscriber) {
+            if (added == null) {
+                added = new LinkedHashMap<>();
+            }
+            added.put(subscriber.connectionId, subscriber);
+        }
+
+        void remove(int connectionId) {
+            if (added == null || added.remove(connectionId) == null) {
+                int at = -Arrays.binarySearch(removed, connectionId) - 1;
+                int[] grown = new int[removed.length + 1];
+                System.arraycopy(removed, 0, grown, 0, at);
+                grown[at] = connectionId;
+                System.arraycopy(removed, at, grown, at + 1, removed.length - at);
+                removed = grown;
+            }
+        }
+
+        Subscriber[] apply() {
+            Subscriber[] current = topic.subscribers;
+            int addedCount = added == null ? 0 : added.size();
+            Subscriber[] result = new Subscriber[current.length - removed.length + addedCount];
+            int n = 0;
+            if (removed.length == 0) {
+                System.arraycopy(current, 0, result, 0, current.length);
+                n = current.length;
+            } else if (removed.length == 1) {
+                int at = 0;
+                while (current[at].connectionId != removed[0]) {
+                    at++;
+                }
+                System.arraycopy(current, 0, result, 0, at);
+                System.arraycopy(current, at + 1, result, at, current.length - at - 1);
+                n = current.length - 1;
+            } else {
+                for (Subscriber subscriber : current) {
+                    if (Arrays.binarySearch(removed, subscriber.connectionId) < 0) {
+                        result[n++] = subscriber;
+                    }
+                }
+            }
+            boolean selective = false;
+            if (addedCount > 0) {
+                for (Subscriber subscriber : added.values()) {
+                    result[n++] = subscriber;
+                    selective |= subscriber.selector != null;
+                }
+            }
+            if (selective) {
+                // removing keeps the groups, only added subscribers need to be moved to theirs;
+                // the sort is stable and nearly linear on the mostly grouped array
+                Arrays.sort(result, BY_SELECTOR);
+            }
+            return result;
+        }
+    }
+
+    private static final class Member {
+        final String topic;
+        final int connectionId;
+
+        Member(String topic, int connectionId) {
+            this.topic = topic;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member)) {
+                return false;
+            }
+            Member other = (Member) o;
+            return connectionId == other.connectionId && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return topic.hashCode() * 31 + connectionId;
+        }
+    }
+
+    private static final class Update {
+        final String topic;
+        final int connectionId;
+        final String subscriptionId;
+        final MessageSelector selector;
+        final AckWindow window;
+        final boolean subscribe;
+        // written by the thread that applied the update before it sets done
+        String result;
+        volatile boolean done;
+        // the next update of the batch that applied this one
+        Update next;
+
+        Update(String topic, int connectionId, String subscriptionId, MessageSelector selector, AckWindow window,
+               boolean subscribe) {
+            this.topic = topic;
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.selector = selector;
+            this.window = window;
+            this.subscribe = subscribe;
+        }
+    }
+
+    private static final class Shard {
+        // read without locking, written only by the holder of lock
+        final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Member, String> members = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<Update> pending = new ConcurrentLinkedQueue<>();
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Queue the update and return once it was applied, by this thread or by the thread that held the lock
+         */
+        void apply(Update update) {
+            pending.add(update);
+            lock.lock();
+            try {
+                if (!update.done) {
+                    applyPending();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void applyPending() {
+            // most batches touch a single topic, the map is only made for a second one
+            TopicChanges first = null;
+            Map<String, TopicChanges> touched = null;
+            Update batch = null;
+            Update update;
+            while ((update = pending.poll()) != null) {
+                TopicChanges changes;
+                if (first == null) {
+                    changes = first = changes(update.topic);
+                } else if (first.name.equals(update.topic)) {
+                    changes = first;
+                } else {
+                    if (touched == null) {
+                        touched = new HashMap<>();
+                    }
+                    changes = touched.get(update.topic);
+                    if (changes == null) {
+                        changes = changes(update.topic);
+                        changes.next = first.next;
+                        first.next = changes;
+                        touched.put(update.topic, changes);
+                    }
+                }
+
+                Member member = new Member(update.topic, update.connectionId);
+                String current = members.get(member);
+                if (update.subscribe) {
+                    update.result = current;
+                    if (current != null) {
+                        changes.remove(update.connectionId);
+                    }
+                    changes.add(new Subscriber(update.connectionId, update.subscriptionId, update.selector, update.window));
+                    members.put(member, update.subscriptionId);
+                } else if (update.subscriptionId.equals(current)) {
+                    changes.remove(update.connectionId);
+                    members.remove(member);
+                }
+                update.next = batch;
+                batch = update;
+            }
+
+            for (TopicChanges changes = first; changes != null; changes = changes.next) {
+                changes.topic.subscribers = changes.apply();
+                if (changes.topic.subscribers.length == 0) {
+                    topics.remove(changes.name, changes.topic);
+                }
+            }
+            for (update = batch; update != null; update = update.next) {
+                update.done = true;
+            }
+        }
+
+        private TopicChanges changes(String name) {
+            return new TopicChanges(name, topics.computeIfAbsent(name, key -> new Topic()));
+        }
+    }
+}
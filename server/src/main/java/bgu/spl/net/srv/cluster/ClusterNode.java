@@ -0,0 +1,228 @@
+package bgu.spl.net.srv.cluster;
+
+import bgu.spl.net.srv.metrics.Metrics;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Joins this server to other servers, so clients of any node receive the messages sent to any node.
+ * Every pair of nodes shares one TCP link. Each node tells all its peers which destinations it has
+ * subscribers for, and forwards a message sent by its own clients only to the peers that have subscribers
+ * for its destination, or for a wildcard destination matching it. A forwarded message is delivered to the
+ * receiving node's subscribers and not forwarded again, so every node must be linked to every other node.
+ *
+ * The node is on when stomp.cluster.port names the port it accepts peers on. stomp.cluster.peers is a comma
+ * separated list of host:port of peers to dial, a link dropped on either side is dialed again every second.
+ * A pair of nodes may list each other; the link dialed by the node with the smaller stomp.cluster.nodeId
+ * (a random id by default) is kept.
+ */
+public class ClusterNode {
+
+    /**
+     * The subscriptions of this node, as seen by the cluster
+     */
+    public interface LocalTopics {
+
+        boolean hasSubscribers(String destination);
+
+        /**
+         * Deliver a message a peer forwarded to the subscribers on this node
+         */
+        void deliver(String destination, byte[] body);
+    }
+
+    private static final long REDIAL_MILLIS = 1000;
+
+    private final String nodeId;
+    private final LocalTopics local;
+    private final int queueCapacity;
+    private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<>();
+    // the destinations the peers were told about, guarded by lock so that announcements are sent in order
+    private final Set<String> announced = new HashSet<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ClusterNode(String nodeId, LocalTopics local, int queueCapacity) {
+        this.nodeId = nodeId;
+        this.local = local;
+        this.queueCapacity = queueCapacity;
+        Metrics.gauge("stomp_cluster_peers", "Cluster peers currently linked", links::size);
+        Metrics.counter("stomp_cluster_forwarded_total", "Messages forwarded to cluster peers, once per peer", forwarded::sum);
+        Metrics.counter("stomp_cluster_received_total", "Messages cluster peers forwarded to this node", received::sum);
+        Metrics.counter("stomp_cluster_dropped_total", "Messages not forwarded because a peer link was full", dropped::sum);
+    }
+
+    /**
+     * @return a started node configured by the system properties, or null if stomp.cluster.port is not set
+     */
+    public static ClusterNode fromSystemProperties(LocalTopics local) {
+        int port = Integer.getInteger("stomp.cluster.port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        ClusterNode node = new ClusterNode(
+                System.getProperty("stomp.cluster.nodeId", UUID.randomUUID().toString()),
+                local,
+                Integer.getInteger("stomp.cluster.queueCapacity", 65_536));
+        try {
+            node.listen(port);
+        } catch (IOException ex) {
+            System.err.println("Cluster port " + port + " not opened: " + ex.getMessage());
+            return null;
+        }
+        String peers = System.getProperty("stomp.cluster.peers", "");
+        for (String peer : peers.split(",")) {
+            if (!peer.trim().isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                node.dial(new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+        }
+        System.out.println("Cluster node " + node.nodeId + " accepting peers on port " + port);
+        return node;
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Accept links from peers on a background thread
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    PeerLink link = new PeerLink(this, socket, null, queueCapacity);
+                    daemon("cluster-reader", link).start();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Keep a link to the peer open from a background thread, dialing it again whenever it drops.
+     * While the peer is linked by a link it dialed itself, this node does not dial it.
+     */
+    public void dial(InetSocketAddress peer) {
+        daemon("cluster-dial-" + peer, () -> {
+            String peerId = null;
+            while (true) {
+                if (peerId == null || !links.containsKey(peerId)) {
+                    try {
+                        PeerLink link = new PeerLink(this, new Socket(peer.getHostString(), peer.getPort()), nodeId, queueCapacity);
+                        link.run();
+                        peerId = link.peerId();
+                    } catch (IOException ignored) {
+                        // the peer is not up yet
+                    }
+                }
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Forward a message sent by a client of this node to every peer with subscribers for its destination
+     */
+    public void publish(String destination, byte[] body) {
+        for (PeerLink link : links.values()) {
+            if (link.interestedIn(destination)) {
+                if (link.publish(destination, body)) {
+                    forwarded.increment();
+                } else {
+                    dropped.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell the peers if the destination got its first subscriber on this node or lost its last one.
+     * Called after every change to the destination's subscribers.
+     */
+    public void interestChanged(String destination) {
+        lock.lock();
+        try {
+            boolean interested = local.hasSubscribers(destination);
+            if (interested ? announced.add(destination) : announced.remove(destination)) {
+                for (PeerLink link : links.values()) {
+                    link.interest(destination, interested);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void received(String destination, byte[] body) {
+        received.increment();
+        local.deliver(destination, body);
+    }
+
+    /**
+     * Register a link that finished its handshake and send it the destinations this node has subscribers for
+     * @return false if the link duplicates a preferred link to the same peer, or loops back to this node,
+     * and was closed
+     */
+    boolean linkUp(PeerLink link) {
+        String peerId = link.peerId();
+        if (peerId.equals(nodeId)) {
+            link.close();
+            return false;
+        }
+        String dialer = link.dialer != null ? link.dialer : peerId;
+        String preferredDialer = nodeId.compareTo(peerId) < 0 ? nodeId : peerId;
+        lock.lock();
+        try {
+            PeerLink existing = links.get(peerId);
+            if (existing != null) {
+                String existingDialer = existing.dialer != null ? existing.dialer : peerId;
+                if (existingDialer.equals(preferredDialer) && !dialer.equals(preferredDialer)) {
+                    link.close();
+                    return false;
+                }
+                existing.close();
+            }
+            links.put(peerId, link);
+            for (String destination : announced) {
+                link.interest(destination, true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Cluster peer " + link + " linked");
+        return true;
+    }
+
+    void linkDown(PeerLink link) {
+        if (link.peerId() != null) {
+            links.remove(link.peerId(), link);
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
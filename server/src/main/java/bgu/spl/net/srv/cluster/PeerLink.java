@@ -0,0 +1,213 @@
+package bgu.spl.net.srv.cluster;
+
+import bgu.spl.net.srv.DestinationTrie;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A TCP connection to another node of the cluster, used in both directions.
+ * Every frame is [int length][byte type] followed by its fields:
+ * HELLO [utf node id], INTEREST and NO_INTEREST [utf destination], PUBLISH [utf destination][body bytes].
+ * Frames are encoded by the sending thread and written by the link's own writer thread,
+ * so a slow peer never blocks the server. The reading side runs on the thread that calls {@link #run()}.
+ */
+class PeerLink implements Runnable, Closeable {
+
+    private static final byte HELLO = 1;
+    private static final byte INTEREST = 2;
+    private static final byte NO_INTEREST = 3;
+    private static final byte PUBLISH = 4;
+    private static final byte[] CLOSE = new byte[0];
+
+    /** the node that opened the connection */
+    final String dialer;
+    /** the destinations the peer has subscribers for */
+    final Set<String> interests = ConcurrentHashMap.newKeySet();
+    /** the wildcard destinations among them */
+    final DestinationTrie patterns = new DestinationTrie();
+
+    private final ClusterNode node;
+    private final Socket socket;
+    private final BlockingQueue<byte[]> outbound;
+    private volatile String peerId;
+    private volatile boolean closed;
+
+    PeerLink(ClusterNode node, Socket socket, String dialer, int queueCapacity) {
+        this.node = node;
+        this.socket = socket;
+        this.dialer = dialer;
+        this.outbound = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    String peerId() {
+        return peerId;
+    }
+
+    /**
+     * Exchange node ids, then read frames until the connection closes
+     */
+    @Override
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(frame(HELLO, node.nodeId(), null));
+            out.flush();
+
+            byte[] hello = readFrame(in);
+            DataInputStream fields = fields(hello);
+            if (fields.readByte() != HELLO) {
+                throw new IOException("peer did not start with HELLO");
+            }
+            peerId = fields.readUTF();
+
+            Thread writer = new Thread(() -> write(out), "cluster-writer-" + peerId);
+            writer.setDaemon(true);
+            writer.start();
+            if (!node.linkUp(this)) {
+                return;
+            }
+
+            while (!closed) {
+                byte[] frame = readFrame(in);
+                fields = fields(frame);
+                byte type = fields.readByte();
+                String destination = fields.readUTF();
+                switch (type) {
+                    case INTEREST:
+                        interests.add(destination);
+                        if (DestinationTrie.isPattern(destination)) {
+                            patterns.add(destination);
+                        }
+                        break;
+                    case NO_INTEREST:
+                        interests.remove(destination);
+                        patterns.remove(destination);
+                        break;
+                    case PUBLISH:
+                        byte[] body = new byte[fields.available()];
+                        fields.readFully(body);
+                        node.received(destination, body);
+                        break;
+                    default:
+                        throw new IOException("unknown cluster frame " + type);
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed && peerId != null) {
+                System.out.println("Cluster peer " + peerId + " disconnected: "
+                        + (ex instanceof EOFException ? "closed by the peer" : ex.getMessage()));
+            }
+        } finally {
+            close();
+            node.linkDown(this);
+        }
+    }
+
+    private void write(DataOutputStream out) {
+        try {
+            while (true) {
+                byte[] frame = outbound.take();
+                if (frame == CLOSE) {
+                    return;
+                }
+                out.write(frame);
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            close();
+        }
+    }
+
+    /**
+     * @return true if the peer has subscribers for the destination, or for a wildcard destination matching it
+     */
+    boolean interestedIn(String destination) {
+        return interests.contains(destination) || patterns.matches(destination);
+    }
+
+    /**
+     * Queue a message for the peer
+     * @return false if the queue is full and the message was dropped
+     */
+    boolean publish(String destination, byte[] body) {
+        return outbound.offer(frame(PUBLISH, destination, body));
+    }
+
+    /**
+     * Tell the peer whether this node has subscribers for the destination. The peer would keep
+     * forwarding to this node or keep missing it if the frame was lost, so a link whose queue
+     * is full is closed instead, to be dialed again and start over from a full interest table.
+     */
+    void interest(String destination, boolean interested) {
+        if (!outbound.offer(frame(interested ? INTEREST : NO_INTEREST, destination, null))) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.clear();
+        outbound.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] frame(byte type, String text, byte[] body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (body == null ? 0 : body.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeUTF(text);
+            if (body != null) {
+                out.write(body);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // writing to memory does not fail
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static DataInputStream fields(byte[] frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    @Override
+    public String toString() {
+        return peerId + " (" + socket.getRemoteSocketAddress() + ")";
+    }
+}
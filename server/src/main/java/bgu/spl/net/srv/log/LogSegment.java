@@ -0,0 +1,181 @@
+package bgu.spl.net.srv.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One memory-mapped file of a topic log, holding the records from its base offset on.
+ * A record is the body length, the record's offset, the time it was appended and the body.
+ * The file is created at its full capacity, so the zeroed bytes after the last record mark its end.
+ * The position of every INDEX_INTERVAL-th record is kept in a sparse index, so a record is found
+ * by a lookup and a short scan.
+ * Not thread safe, the owning {@link TopicLog} serializes appends and lookups.
+ */
+class LogSegment {
+
+    static final int RECORD_HEADER = 4 + 8 + 8;
+    private static final int INDEX_INTERVAL = 64;
+    private static final String SUFFIX = ".log";
+
+    final long baseOffset;
+    private final Path file;
+    private final MappedByteBuffer map;
+    private int writePosition = 0;
+    private long nextOffset;
+    private long lastAppendMillis;
+    // position of the records baseOffset, baseOffset + INDEX_INTERVAL, ...
+    private int[] index = new int[16];
+    private int indexed = 0;
+    // replay cursors reading this segment, its file is deleted once it was retired and none is left
+    private int readers = 0;
+    private boolean retired = false;
+
+    private LogSegment(Path file, long baseOffset, MappedByteBuffer map) {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.map = map;
+        this.nextOffset = baseOffset;
+    }
+
+    static LogSegment create(Path dir, long baseOffset, int capacity) throws IOException {
+        Path file = dir.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            LogSegment segment = new LogSegment(file, baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            segment.lastAppendMillis = System.currentTimeMillis();
+            return segment;
+        }
+    }
+
+    /**
+     * Maps an existing segment and finds the end of its records
+     */
+    static LogSegment open(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            LogSegment segment = new LogSegment(file, baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    static boolean isSegment(Path file) {
+        return file.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    private void recover() {
+        lastAppendMillis = Files.isRegularFile(file) ? file.toFile().lastModified() : 0;
+        int position = 0;
+        while (position + RECORD_HEADER <= map.capacity()) {
+            int length = map.getInt(position);
+            long offset = map.getLong(position + 4);
+            long appended = map.getLong(position + 12);
+            if (appended == 0 || offset != nextOffset || length < 0 || position + RECORD_HEADER + length > map.capacity()) {
+                break;
+            }
+            lastAppendMillis = appended;
+            indexRecord(position);
+            position += RECORD_HEADER + length;
+            nextOffset++;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * @return false if the record does not fit in what is left of the segment
+     */
+    boolean append(byte[] body, long now) {
+        if (writePosition + RECORD_HEADER + body.length > map.capacity()) {
+            return false;
+        }
+        int position = writePosition;
+        map.put(position + RECORD_HEADER, body, 0, body.length);
+        map.putLong(position + 12, now);
+        map.putLong(position + 4, nextOffset);
+        map.putInt(position, body.length);
+        indexRecord(position);
+        writePosition = position + RECORD_HEADER + body.length;
+        nextOffset++;
+        lastAppendMillis = now;
+        return true;
+    }
+
+    /**
+     * @return the position of the record with the given offset, which must be in this segment
+     */
+    int positionOf(long offset) {
+        int slot = (int) ((offset - baseOffset) / INDEX_INTERVAL);
+        int position = index[slot];
+        for (long at = baseOffset + (long) slot * INDEX_INTERVAL; at < offset; at++) {
+            position += RECORD_HEADER + map.getInt(position);
+        }
+        return position;
+    }
+
+    /**
+     * Adds the record at the position, which has offset nextOffset, to the index if it is on the interval
+     */
+    private void indexRecord(int position) {
+        if ((nextOffset - baseOffset) % INDEX_INTERVAL != 0) {
+            return;
+        }
+        if (indexed == index.length) {
+            index = Arrays.copyOf(index, indexed * 2);
+        }
+        index[indexed++] = position;
+    }
+
+    int lengthAt(int position) {
+        return map.getInt(position);
+    }
+
+    /**
+     * @return a read-only view of the body of the record at the given position, sharing the mapping
+     */
+    ByteBuffer bodyAt(int position) {
+        return map.slice(position + RECORD_HEADER, map.getInt(position)).asReadOnlyBuffer();
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    long lastAppendMillis() {
+        return lastAppendMillis;
+    }
+
+    int size() {
+        return writePosition;
+    }
+
+    void force() {
+        map.force();
+    }
+
+    synchronized void pin() {
+        readers++;
+    }
+
+    synchronized void unpin() throws IOException {
+        if (--readers == 0 && retired) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Removes the file once no replay cursor reads the segment any more;
+     * views handed out for replay stay readable until they are collected
+     */
+    synchronized void delete() throws IOException {
+        retired = true;
+        if (readers == 0) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
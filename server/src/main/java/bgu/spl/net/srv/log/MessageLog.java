@@ -0,0 +1,125 @@
+package bgu.spl.net.srv.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable logs of every destination, one directory of segments per destination under a
+ * root directory. The log is on when stomp.log.dir names the root directory, and is configured by
+ * stomp.log.segmentBytes (16 MiB), stomp.log.retentionBytes (256 MiB per destination) and
+ * stomp.log.retentionMillis (7 days). Retention is enforced whenever a segment fills up and once a minute.
+ * One scheduler thread and one shutdown hook serve every log; they hold the logs weakly, so a log
+ * that is no longer used is collected.
+ */
+public class MessageLog {
+
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final Set<MessageLog> OPEN = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    static {
+        ScheduledExecutorService retention = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "topic-log-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retention.scheduleWithFixedDelay(() -> {
+            for (MessageLog log : openLogs()) {
+                log.enforceRetention();
+            }
+        }, RETENTION_CHECK_MILLIS, RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (MessageLog log : openLogs()) {
+                log.force();
+            }
+        }, "topic-log-flush"));
+    }
+
+    private final Path root;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<String, TopicLog> topics = new ConcurrentHashMap<>();
+
+    public MessageLog(Path root, int segmentBytes, long retentionBytes, long retentionMillis) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        OPEN.add(this);
+    }
+
+    private static List<MessageLog> openLogs() {
+        synchronized (OPEN) {
+            return new ArrayList<>(OPEN);
+        }
+    }
+
+    /**
+     * @return the log configured by the system properties, or null if stomp.log.dir is not set
+     */
+    public static MessageLog fromSystemProperties() {
+        String dir = System.getProperty("stomp.log.dir");
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new MessageLog(Paths.get(dir),
+                Integer.getInteger("stomp.log.segmentBytes", 16 << 20),
+                Long.getLong("stomp.log.retentionBytes", 256L << 20),
+                Long.getLong("stomp.log.retentionMillis", TimeUnit.DAYS.toMillis(7)));
+    }
+
+    /**
+     * @return the log of the destination, opening the segments it already has on disk
+     */
+    public TopicLog topic(String destination) throws IOException {
+        TopicLog log = topics.get(destination);
+        if (log != null) {
+            return log;
+        }
+        try {
+            return topics.computeIfAbsent(destination, name -> {
+                try {
+                    return new TopicLog(root.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E")),
+                            segmentBytes, retentionBytes, retentionMillis);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * @return the log of the destination if it was opened already, null otherwise
+     */
+    public TopicLog find(String destination) {
+        return topics.get(destination);
+    }
+
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        for (TopicLog log : topics.values()) {
+            log.enforceRetention(now);
+        }
+    }
+
+    private void force() {
+        for (TopicLog log : topics.values()) {
+            log.force();
+        }
+    }
+}
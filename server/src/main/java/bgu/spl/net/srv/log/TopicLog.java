@@ -0,0 +1,288 @@
+package bgu.spl.net.srv.log;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * The append-only log of the messages published to one destination, split into segments.
+ * Every message gets the next offset, which the server sends in the offset header of its MESSAGE frames.
+ * A subscriber that asks for a replay gets the messages before a cut offset from the log
+ * and the messages from the cut on live, the cut is taken under the same lock as appends
+ * and after the subscription is added, so no message is missed or delivered twice.
+ */
+public class TopicLog {
+
+    // releases the segments of the replay cursors that were dropped before they reached their end
+    private static final Cleaner CURSORS = Cleaner.create();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<LogSegment> segments = new ArrayList<>();
+    // connectionId -> first offset the connection receives live, only for replaying subscribers
+    private final ConcurrentHashMap<Integer, Long> liveFrom = new ConcurrentHashMap<>();
+
+    TopicLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(dir)) {
+            listing.filter(LogSegment::isSegment).sorted(Comparator.comparing(Path::toString)).forEach(files::add);
+        }
+        for (Path file : files) {
+            segments.add(LogSegment.open(file));
+        }
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.create(dir, 0, segmentBytes));
+        }
+    }
+
+    /**
+     * @return the offset of the appended message
+     */
+    public long append(byte[] body) throws IOException {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            LogSegment active = active();
+            if (!active.append(body, now)) {
+                active.force();
+                active = LogSegment.create(dir, active.nextOffset(), Math.max(segmentBytes, LogSegment.RECORD_HEADER + body.length));
+                segments.add(active);
+                active.append(body, now);
+                enforceRetention(now);
+            }
+            return active.nextOffset() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a replaying subscriber. The connection receives nothing live until the cut is taken, and
+     * the cut is taken after the subscription is added, so every message either reaches it live or is
+     * before the cut and replayed. Only the cut is taken under the log's lock, so appends never wait for
+     * the registration.
+     * @param register adds the subscription, returns false if it did not, as when the connection closed
+     * @return the cut: messages before it are replayed, messages from it on are delivered live;
+     *         -1 if the subscription was not added
+     */
+    public long subscribe(int connectionId, BooleanSupplier register) {
+        liveFrom.put(connectionId, Long.MAX_VALUE);
+        if (!register.getAsBoolean()) {
+            liveFrom.remove(connectionId);
+            return -1;
+        }
+        lock.lock();
+        try {
+            long cut = active().nextOffset();
+            liveFrom.put(connectionId, cut);
+            return cut;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only the subscriptions to this log's own destination replay it, not the wildcard ones matching it
+     * @return false if the message at the offset reaches the connection through its replay instead
+     */
+    public boolean isLive(int connectionId, long offset) {
+        if (liveFrom.isEmpty()) {
+            return true;
+        }
+        Long from = liveFrom.get(connectionId);
+        return from == null || offset >= from;
+    }
+
+    public void forget(int connectionId) {
+        liveFrom.remove(connectionId);
+    }
+
+    /**
+     * @return the offset of the oldest message still retained
+     */
+    public long firstOffset() {
+        lock.lock();
+        try {
+            return segments.get(0).baseOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Streams the retained messages from the given offset up to the cut, reading each one from the
+     * mapped segments only when the iterator reaches it. Messages before the cut are never modified,
+     * so the iterator may be used by any thread without the lock. Retention does not delete the file
+     * of a segment the iterator has yet to read until it moved past it, reached its end or was collected.
+     *
+     * @param toFrame turns an offset and a view of the message body into the parts of a frame,
+     *                or returns null to leave the message out of the replay
+     */
+    public Iterator<ByteBuffer[]> replay(long from, long cut, BiFunction<Long, ByteBuffer, ByteBuffer[]> toFrame) {
+        lock.lock();
+        try {
+            List<LogSegment> snapshot = new ArrayList<>(segments);
+            return new Cursor(snapshot, Math.max(from, snapshot.get(0).baseOffset), cut, toFrame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit, or while they only hold
+     * messages older than the age limit. The active segment is always kept.
+     */
+    public void enforceRetention(long now) {
+        lock.lock();
+        try {
+            long total = 0;
+            for (LogSegment segment : segments) {
+                total += segment.size();
+            }
+            while (segments.size() > 1) {
+                LogSegment oldest = segments.get(0);
+                if (total <= retentionBytes && now - oldest.lastAppendMillis() <= retentionMillis) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.size();
+                try {
+                    oldest.delete();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void force() {
+        lock.lock();
+        try {
+            active().force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LogSegment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Created under the log's lock, which keeps the segments from being retired before they are pinned
+     */
+    private static class Cursor implements Iterator<ByteBuffer[]> {
+        private final List<LogSegment> segments;
+        private final long cut;
+        private final BiFunction<Long, ByteBuffer, ByteBuffer[]> toFrame;
+        private final Pins pins;
+        private final Cleaner.Cleanable cleanable;
+        private int segmentIndex = 0;
+        private int position;
+        private long offset;
+        // the next frame, read ahead by hasNext to step over the messages toFrame leaves out
+        private ByteBuffer[] ahead;
+
+        private Cursor(List<LogSegment> segments, long from, long cut, BiFunction<Long, ByteBuffer, ByteBuffer[]> toFrame) {
+            this.segments = segments;
+            this.cut = cut;
+            this.toFrame = toFrame;
+            this.offset = from;
+            while (segmentIndex < segments.size() - 1 && segments.get(segmentIndex + 1).baseOffset <= from) {
+                segmentIndex++;
+            }
+            LogSegment segment = segments.get(segmentIndex);
+            this.position = from < segment.nextOffset() ? segment.positionOf(from) : segment.size();
+            this.pins = new Pins(segments, segmentIndex);
+            this.cleanable = CURSORS.register(this, pins);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (ahead == null && offset < cut) {
+                ahead = read();
+            }
+            if (ahead == null) {
+                cleanable.clean();
+            }
+            return ahead != null;
+        }
+
+        @Override
+        public ByteBuffer[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ByteBuffer[] frame = ahead;
+            ahead = null;
+            return frame;
+        }
+
+        private ByteBuffer[] read() {
+            LogSegment segment = segments.get(segmentIndex);
+            if (offset >= segment.nextOffset()) {
+                segment = segments.get(++segmentIndex);
+                position = 0;
+                pins.releaseBefore(segmentIndex);
+            }
+            ByteBuffer body = segment.bodyAt(position);
+            position += LogSegment.RECORD_HEADER + segment.lengthAt(position);
+            return toFrame.apply(offset++, body);
+        }
+    }
+
+    /**
+     * The segments a cursor still has to read, released as it moves past them
+     */
+    private static class Pins implements Runnable {
+        private final List<LogSegment> segments;
+        // the segments before this index were released
+        private int released;
+
+        private Pins(List<LogSegment> segments, int first) {
+            this.segments = segments;
+            this.released = first;
+            for (int i = first; i < segments.size(); i++) {
+                segments.get(i).pin();
+            }
+        }
+
+        synchronized void releaseBefore(int index) {
+            while (released < index) {
+                try {
+                    segments.get(released++).unpin();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            releaseBefore(segments.size());
+        }
+    }
+}
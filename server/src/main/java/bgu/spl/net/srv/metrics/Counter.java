@@ -0,0 +1,32 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, striped so that concurrent updates do not contend
+ */
+public class Counter extends Metric {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String help) {
+        super(name, help, "counter");
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    public long sum() {
+        return count.sum();
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        out.append(name).append(' ').append(count.sum()).append('\n');
+    }
+}
@@ -0,0 +1,136 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values with log-linear buckets, in the manner of HdrHistogram.
+ * Every power of two is split into {@link #SUB_BUCKETS} equal buckets, so a recorded value is
+ * known to within 1/8 of itself from 1 up to Long.MAX_VALUE, with a fixed array of counts and
+ * no allocation per value. Buckets are closed at the top: bucket i counts the values in
+ * (upperBound(i-1), upperBound(i)], which makes every power of two the top of a bucket.
+ */
+public class Histogram extends Metric {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram that is not registered, to measure something locally
+     */
+    public Histogram() {
+        this("", "");
+    }
+
+    Histogram(String name, String help) {
+        super(name, help, "histogram");
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the top of the bucket holding the value at the given percentile, or 0 if nothing was recorded
+     */
+    public long valueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes cumulative buckets at every power of two up to the largest value recorded
+     */
+    @Override
+    void writeSamples(StringBuilder out) {
+        long cumulative = counts.get(0);
+        writeBucket(out, "0", cumulative);
+        long top = max.get();
+        for (int i = 1; i < BUCKETS && upperBound(i - 1) < top; i++) {
+            cumulative += counts.get(i);
+            long bound = upperBound(i);
+            if (Long.bitCount(bound) == 1) {
+                writeBucket(out, Long.toString(bound), cumulative);
+            }
+        }
+        long total = count.sum();
+        writeBucket(out, "+Inf", total);
+        out.append(name).append("_sum ").append(sum.sum()).append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+
+    private void writeBucket(StringBuilder out, String le, long cumulative) {
+        out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+    }
+
+    /**
+     * Bucket 0 holds 0 alone, the others hold value - 1 at its log-linear index plus one
+     */
+    static int bucketOf(long value) {
+        if (value == 0) {
+            return 0;
+        }
+        long v = value - 1;
+        if (v < SUB_BUCKETS) {
+            return (int) v + 1;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub + 1;
+    }
+
+    /**
+     * @return the largest value counted by the given bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket <= SUB_BUCKETS) {
+            return bucket;
+        }
+        int index = bucket - 1;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        long lowest = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        long top = lowest + width; // top of v = value - 1, plus one
+        return top < 0 ? Long.MAX_VALUE : top;
+    }
+}
@@ -0,0 +1,45 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A family of counters told apart by the value of one label, out of a fixed set of values
+ */
+public class LabeledCounter extends Metric {
+
+    private static final String OTHER = "other";
+
+    private final String label;
+    private final Map<String, LongAdder> counts = new TreeMap<>();
+    private final LongAdder other = new LongAdder();
+
+    LabeledCounter(String name, String help, String label, String... values) {
+        super(name, help, "counter");
+        this.label = label;
+        for (String value : values) {
+            counts.put(value, new LongAdder());
+        }
+    }
+
+    /**
+     * @return the counter of the given label value; the map is never modified after construction
+     */
+    public LongAdder labels(String value) {
+        LongAdder count = counts.get(value);
+        return count != null ? count : other;
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            writeSample(out, entry.getKey(), entry.getValue().sum());
+        }
+        writeSample(out, OTHER, other.sum());
+    }
+
+    private void writeSample(StringBuilder out, String value, long count) {
+        out.append(name).append('{').append(label).append("=\"").append(value).append("\"} ").append(count).append('\n');
+    }
+}
@@ -0,0 +1,23 @@
+package bgu.spl.net.srv.metrics;
+
+/**
+ * A named metric family that can write its samples
+ */
+public abstract class Metric {
+
+    protected final String name;
+    protected final String help;
+    protected final String type;
+
+    protected Metric(String name, String help, String type) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    abstract void writeSamples(StringBuilder out);
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The process-wide registry of metrics, written in the Prometheus text exposition format.
+ * A metric is registered once, usually into a static field of the class that updates it,
+ * and updating it never takes a lock. Registering a name twice returns the first metric, except for
+ * gauges and sampled counters: they read the state of the object that registered them, so the latest
+ * registration replaces the earlier one and an earlier object is not kept alive by the registry.
+ */
+public final class Metrics {
+
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * @param values the expected label values, any other value is counted under "other"
+     * so a misbehaving client cannot grow the registry without bound
+     */
+    public static LabeledCounter labeledCounter(String name, String help, String label, String... values) {
+        return register(new LabeledCounter(name, help, label, values));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier on every scrape
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        METRICS.put(name, new Sampled(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a counter that is already kept elsewhere and read from the supplier on every scrape
+     */
+    public static void counter(String name, String help, LongSupplier value) {
+        METRICS.put(name, new Sampled(name, help, "counter", value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M extends Metric> M register(M metric) {
+        return (M) METRICS.computeIfAbsent(metric.name, name -> metric);
+    }
+
+    /**
+     * @return every registered metric in the Prometheus text format, sorted by name
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : METRICS.values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.writeSamples(out);
+        }
+        return out.toString();
+    }
+
+    private static final class Sampled extends Metric {
+        private final LongSupplier value;
+
+        private Sampled(String name, String help, String type, LongSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+}
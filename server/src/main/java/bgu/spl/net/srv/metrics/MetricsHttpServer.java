@@ -0,0 +1,69 @@
+package bgu.spl.net.srv.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Serves {@link Metrics#scrape()} as plain text on GET /metrics, and any other text report added
+ * with {@link #serve}, handling one request at a time
+ */
+public class MetricsHttpServer implements Closeable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    private MetricsHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @param host the address to listen on, such as 127.0.0.1 to serve local scrapers only
+     */
+    public static MetricsHttpServer start(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> handle(exchange, Metrics::scrape));
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return new MetricsHttpServer(server);
+    }
+
+    /**
+     * Serves the report, built anew for every GET of the path
+     */
+    public MetricsHttpServer serve(String path, Supplier<String> report) {
+        server.createContext(path, exchange -> handle(exchange, report));
+        return this;
+    }
+
+    private static void handle(HttpExchange exchange, Supplier<String> report) throws IOException {
+        try (HttpExchange ex = exchange) {
+            if (!ex.getRequestMethod().equals("GET")) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = report.get().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
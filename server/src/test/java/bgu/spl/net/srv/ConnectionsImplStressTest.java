@@ -0,0 +1,285 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Hammers the subscription registry with concurrent subscribes, unsubscribes, disconnects and sends.
+ * Steady subscribers must receive every message sent, and once every connection is gone no
+ * subscription, topic or per-connection index may be left behind.
+ * Concurrent publishers must never give two messages the same message-id, not even across restarts.
+ */
+class ConnectionsImplStressTest {
+
+    private static final int TOPICS = 16;
+    private static final int STEADY = 8;
+    private static final int CHURNERS = 4;
+    private static final int CHURN_ROUNDS = 2_000;
+    private static final int PUBLISHERS = 2;
+    private static final int MESSAGES_PER_PUBLISHER = 20_000;
+    private static final int FIRST_CHURN_ID = 1_000;
+    private static final int ID_PUBLISHERS = 8;
+    private static final int ID_MESSAGES_PER_PUBLISHER = 10_000;
+
+    @BeforeAll
+    static void useTemporaryStore() throws Exception {
+        // disconnect logs out through the database, keep its store out of the working directory
+        Path dir = Files.createTempDirectory("stomp-stress");
+        System.setProperty("stomp.db.file", dir.resolve("stomp_server.store").toString());
+    }
+
+    @Test
+    void noSubscriptionLeaksAndNoDeliveryIsLost() throws Exception {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        String[] topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = "/stress/" + i;
+        }
+
+        List<CountingHandler> steady = new ArrayList<>();
+        for (int id = 0; id < STEADY; id++) {
+            CountingHandler handler = new CountingHandler();
+            steady.add(handler);
+            connections.connect(id, handler);
+            for (int i = 0; i < TOPICS; i++) {
+                connections.subscribe(topics[i], id, Integer.toString(i));
+            }
+        }
+
+        AtomicInteger nextId = new AtomicInteger(FIRST_CHURN_ID);
+        ConcurrentLinkedQueue<Integer> reapable = new ConcurrentLinkedQueue<>();
+        AtomicBoolean churning = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int t = 0; t < CHURNERS; t++) {
+            int seed = t;
+            workers.add(new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                await(start);
+                for (int round = 0; round < CHURN_ROUNDS; round++) {
+                    int id = nextId.getAndIncrement();
+                    connections.connect(id, new CountingHandler());
+                    // the reaper may disconnect the connection while it is still subscribing
+                    reapable.add(id);
+                    for (int sub = 0; sub < 4; sub++) {
+                        connections.subscribe(topics[random.nextInt(TOPICS)], id, Integer.toString(sub));
+                        if (random.nextBoolean()) {
+                            connections.unsubscribe(Integer.toString(random.nextInt(4)), id);
+                        }
+                    }
+                    if (random.nextInt(4) == 0) {
+                        connections.disconnect(id);
+                    }
+                }
+            }, "churn-" + t));
+        }
+        Thread reaper = new Thread(() -> {
+            await(start);
+            Integer id;
+            while (churning.get() || !reapable.isEmpty()) {
+                if ((id = reapable.poll()) != null) {
+                    connections.disconnect(id);
+                }
+            }
+        }, "reaper");
+        for (int t = 0; t < PUBLISHERS; t++) {
+            int seed = 100 + t;
+            workers.add(new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                await(start);
+                for (int i = 0; i < MESSAGES_PER_PUBLISHER; i++) {
+                    connections.send(topics[random.nextInt(TOPICS)], "m" + i);
+                }
+            }, "publisher-" + t));
+        }
+
+        List<Thread> all = new ArrayList<>(workers);
+        all.add(reaper);
+        for (Thread thread : all) {
+            thread.setUncaughtExceptionHandler((th, ex) -> failures.add(ex));
+            thread.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.MINUTES.toMillis(2));
+            assertFalse(worker.isAlive(), worker.getName() + " did not finish");
+        }
+        churning.set(false);
+        reaper.join(TimeUnit.MINUTES.toMillis(1));
+        assertFalse(reaper.isAlive(), "reaper did not finish");
+        assertTrue(failures.isEmpty(), () -> "worker failed: " + failures);
+
+        for (int id = FIRST_CHURN_ID; id < nextId.get(); id++) {
+            for (String topic : topics) {
+                assertFalse(connections.isSubscribed(topic, id), "closed connection " + id + " still on " + topic);
+            }
+        }
+        assertEquals((long) STEADY * TOPICS, connections.subscriptionCount(), "subscriptions of closed connections leaked");
+        assertEquals(STEADY, connections.indexedConnections(), "indexes of closed connections leaked");
+        for (CountingHandler handler : steady) {
+            assertEquals((long) PUBLISHERS * MESSAGES_PER_PUBLISHER, handler.messages.sum(), "a steady subscriber lost messages");
+        }
+
+        for (int id = 0; id < STEADY; id++) {
+            connections.disconnect(id);
+        }
+        assertEquals(0, connections.subscriptionCount());
+        assertEquals(0, connections.indexedConnections());
+        for (String topic : topics) {
+            assertFalse(connections.hasSubscribers(topic), topic + " still has subscribers");
+        }
+    }
+
+    @Test
+    void messageIdsAreUniqueAcrossPublishersAndRestarts() throws Exception {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        long published = (long) ID_PUBLISHERS * ID_MESSAGES_PER_PUBLISHER;
+        assertEquals(published, publishAndCollectIds(new ConnectionsImpl<>(), ids), "a message-id was given out twice");
+        // a new instance has a new generator, as after a restart of the server
+        assertEquals(2 * published, publishAndCollectIds(new ConnectionsImpl<>(), ids),
+                "a message-id of the new epoch collides with one of the first run");
+    }
+
+    @Test
+    void generatorsCreatedInTheSameMillisecondDoNotCollide() {
+        Set<String> ids = new HashSet<>();
+        for (int run = 0; run < 100; run++) {
+            MessageIdGenerator generator = new MessageIdGenerator();
+            for (int i = 0; i < 10; i++) {
+                assertTrue(ids.add(generator.next()), "generator " + run + " repeated a message-id");
+            }
+        }
+    }
+
+    /**
+     * Sends from ID_PUBLISHERS threads to every topic, each topic having one subscriber, and adds the
+     * message-id of every delivered MESSAGE to ids.
+     *
+     * @return the size of ids afterwards
+     */
+    private static int publishAndCollectIds(ConnectionsImpl<String> connections, Set<String> ids) throws Exception {
+        IdCollectingHandler handler = new IdCollectingHandler(ids);
+        connections.connect(0, handler);
+        for (int i = 0; i < TOPICS; i++) {
+            connections.subscribe("/ids/" + i, 0, Integer.toString(i));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < ID_PUBLISHERS; t++) {
+            int seed = t;
+            Thread publisher = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                await(start);
+                for (int i = 0; i < ID_MESSAGES_PER_PUBLISHER; i++) {
+                    connections.send("/ids/" + random.nextInt(TOPICS), "m" + i);
+                }
+            }, "id-publisher-" + t);
+            publisher.setUncaughtExceptionHandler((th, ex) -> failures.add(ex));
+            publishers.add(publisher);
+            publisher.start();
+        }
+        start.countDown();
+        for (Thread publisher : publishers) {
+            publisher.join(TimeUnit.MINUTES.toMillis(2));
+            assertFalse(publisher.isAlive(), publisher.getName() + " did not finish");
+        }
+        assertTrue(failures.isEmpty(), () -> "publisher failed: " + failures);
+        assertEquals((long) ID_PUBLISHERS * ID_MESSAGES_PER_PUBLISHER, handler.messages.sum(), "a message was lost");
+        connections.disconnect(0);
+        return ids.size();
+    }
+
+    private static void await(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A connection that counts the messages sent to it and collects their message-ids
+     */
+    private static final class IdCollectingHandler extends CountingHandler {
+
+        private final Set<String> ids;
+
+        IdCollectingHandler(Set<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean sendEncoded(ByteBuffer... parts) {
+            StringBuilder frame = new StringBuilder();
+            for (ByteBuffer part : parts) {
+                frame.append(StandardCharsets.UTF_8.decode(part.duplicate()));
+            }
+            int start = frame.indexOf("\nmessage-id:") + "\nmessage-id:".length();
+            ids.add(frame.substring(start, frame.indexOf("\n", start)));
+            return super.sendEncoded(parts);
+        }
+    }
+
+    /**
+     * A connection that only counts the messages sent to it
+     */
+    private static class CountingHandler implements ConnectionHandler<String> {
+
+        final LongAdder messages = new LongAdder();
+
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public boolean sendEncoded(ByteBuffer... parts) {
+            messages.increment();
+            return true;
+        }
+
+        @Override
+        public void sendBacklog(Iterator<ByteBuffer[]> backlog) {
+            while (backlog.hasNext()) {
+                sendEncoded(backlog.next());
+            }
+        }
+
+        @Override
+        public void abort(String lastMessage) {
+        }
+
+        @Override
+        public void heartbeat(long sendMillis, long idleMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}